@@ -0,0 +1,568 @@
+package lockmgr;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+
+/**
+ * State and policy shared by the lock engines: deadlock detection and
+ * prevention, victim selection, and hierarchical row locks with
+ * escalation.  An engine supplies the plain lock and unlock operations
+ * and the few hooks the policies need.
+ */
+public abstract class AbstractLockManager implements LockManager
+{
+    /* A lock request is considered deadlocked after 10 sec. */
+    static int DEADLOCK_TIMEOUT = 10000;
+
+    protected int deadlockMode = deadlockMode(System.getProperty("deadlock"));
+    protected int victimRule = "fewestLocks".equals(System.getProperty("deadlockVictim")) ? VICTIM_FEWEST_LOCKS : VICTIM_YOUNGEST;
+    protected WaitsForGraph waitsFor = new WaitsForGraph();
+    /* Once a transaction holds this many locks, its next row lock is
+       escalated to a lock on the whole table; 0 disables escalation.
+       Set with -DlockEscalation=N. */
+    protected int escalationThreshold = Integer.getInteger("lockEscalation", 1000);
+    protected int grantPolicy = LockManagerFactory.grantPolicy(System.getProperty("lockGrant"));
+    protected int starvationBound = Integer.getInteger("lockStarvation", 8);
+    // transactions wounded by an older one; they abort on their next
+    // lock request
+    private HashSet<Integer> wounded = new HashSet<Integer>();
+    // whether wounded is not empty, readable without its monitor
+    private volatile boolean anyWounded = false;
+
+    // shared by all instances: the default wait executor, and the
+    // timer that expires asynchronous requests
+    private static final Executor WAIT_EXECUTOR = newWaitExecutor();
+    static final ScheduledThreadPoolExecutor TIMER = newTimer();
+
+    // the order lockAll takes row locks in
+    private static final Comparator<LockKey> CANONICAL = new Comparator<LockKey>() {
+        public int compare(LockKey a, LockKey b) {
+            int order = a.getTable().compareTo(b.getTable());
+            if (order != 0) {
+                return order;
+            }
+            return a.getRow().compareTo(b.getRow());
+        }
+    };
+
+    protected Executor waitExecutor = AbstractLockManager.WAIT_EXECUTOR;
+    protected LockStats stats = new LockStats();
+    protected LockTrace trace = new LockTrace();
+    protected RangeLocks ranges = new RangeLocks();
+    protected LockKeys keys = new LockKeys();
+
+    protected AbstractLockManager() {
+        super();
+    }
+
+    public void setDeadlockMode(int deadlockMode) {
+        this.deadlockMode = deadlockMode;
+    }
+
+    public void setVictimRule(int victimRule) {
+        this.victimRule = victimRule;
+    }
+
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    public void setGrantPolicy(int grantPolicy) {
+        this.grantPolicy = grantPolicy;
+    }
+
+    public void setStarvationBound(int starvationBound) {
+        this.starvationBound = starvationBound;
+    }
+
+    public void setWaitExecutor(Executor waitExecutor) {
+        this.waitExecutor = waitExecutor;
+    }
+
+    public LockStats getStats() {
+        return this.stats;
+    }
+
+    public LockTrace getTrace() {
+        return this.trace;
+    }
+
+    // a virtual thread per task if this JVM has them (Java 21 on),
+    // else a cached pool of daemon threads
+    private static Executor newWaitExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (Exception e) {
+            return Executors.newCachedThreadPool(daemonThreads("lock-wait"));
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonThreads("lock-timer"));
+        // a granted request cancels its timeout; do not keep it queued
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static int deadlockMode(String name) {
+        if ("timeout".equals(name)) {
+            return TIMEOUT;
+        } else if ("woundWait".equals(name)) {
+            return WOUND_WAIT;
+        } else if ("waitDie".equals(name)) {
+            return WAIT_DIE;
+        }
+        return DETECT;
+    }
+
+    /**
+     * Takes the intention lock on the table and then the row lock, or
+     * a covering table lock once the transaction has reached the
+     * escalation threshold.
+     *
+     * @see LockManager#lock(int, String, String, int)
+     */
+    public boolean lock(int xid, String table, String row, int lockType)
+        throws DeadlockException
+    {
+        return lock(xid, table, row, lockType, -1);
+    }
+
+    /**
+     * As lock(int, String, String, int), with the table and row lock
+     * sharing one deadline.
+     *
+     * @see LockManager#lock(int, String, String, int, long)
+     */
+    public boolean lock(int xid, String table, String row, int lockType, long timeoutMillis)
+        throws DeadlockException
+    {
+        if (table == null || row == null || !rowMode(lockType)) {
+            return false;
+        }
+        return lockRow(xid, this.keys.key(table, row), lockType, timeoutMillis);
+    }
+
+    public boolean lock(int xid, LockKey row, int lockType)
+        throws DeadlockException
+    {
+        return lock(xid, row, lockType, -1);
+    }
+
+    /**
+     * As lock(int, String, String, int, long), for a row given by its
+     * LockKey.
+     *
+     * @see LockManager#lock(int, LockKey, int, long)
+     */
+    public boolean lock(int xid, LockKey row, int lockType, long timeoutMillis)
+        throws DeadlockException
+    {
+        if (row == null || row.getTable() == null || row.getRow() == null || !rowMode(lockType)) {
+            return false;
+        }
+        return lockRow(xid, this.keys.key(row), lockType, timeoutMillis);
+    }
+
+    private static boolean rowMode(int lockType) {
+        return (lockType == LockManager.READ) || (lockType == LockManager.WRITE)
+            || (lockType == LockManager.UPDATE);
+    }
+
+    // locks row, whose key is from the dictionary
+    private boolean lockRow(int xid, LockKey row, int lockType, long timeoutMillis)
+        throws DeadlockException
+    {
+        String table = row.getTable();
+        int tableMode = heldMode(xid, table);
+        if (tableMode != LockModes.NONE && LockModes.covers(tableMode, lockType)) {
+            return true;
+        }
+        if (this.escalationThreshold > 0 && locksHeld(xid) >= this.escalationThreshold) {
+            boolean readOnly = (lockType == LockManager.READ)
+                && (tableMode == LockModes.NONE || tableMode == LockManager.IS);
+            return lock(xid, table, readOnly ? LockManager.READ : LockManager.WRITE,
+                        timeoutMillis);
+        }
+        long start = (timeoutMillis > 0) ? System.currentTimeMillis() : 0;
+        if (!lock(xid, table, LockModes.intention(lockType), timeoutMillis)) {
+            return false;
+        }
+        if (!lock(xid, row.getDataItem(), lockType, remaining(timeoutMillis, start))) {
+            return false;
+        }
+        if (lockType != LockManager.WRITE) {
+            return true;
+        }
+        // wait for the range locks of others that hold the row
+        ArrayList<String> ranges = this.ranges.written(xid, table, row.getRow());
+        if (ranges != null) {
+            int size = ranges.size();
+            for (int i = 0; i < size; i++) {
+                if (!lock(xid, ranges.get(i), LockManager.WRITE, remaining(timeoutMillis, start))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean lockAll(int xid, LockKey[] rows, int lockType)
+        throws DeadlockException
+    {
+        return lockAll(xid, rows, lockType, -1);
+    }
+
+    /**
+     * Sorts the rows into the canonical order and locks them one by one,
+     * all sharing one deadline.
+     *
+     * @see LockManager#lockAll(int, LockKey[], int, long)
+     */
+    public boolean lockAll(int xid, LockKey[] rows, int lockType, long timeoutMillis)
+        throws DeadlockException
+    {
+        if (rows == null || !rowMode(lockType)) {
+            return false;
+        }
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] == null || rows[i].getTable() == null || rows[i].getRow() == null) {
+                return false;
+            }
+        }
+        LockKey[] sorted = new LockKey[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            sorted[i] = this.keys.key(rows[i]);
+        }
+        Arrays.sort(sorted, AbstractLockManager.CANONICAL);
+        long start = (timeoutMillis > 0) ? System.currentTimeMillis() : 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && sorted[i].equals(sorted[i - 1])) {
+                continue;
+            }
+            if (!lockRow(xid, sorted[i], lockType, remaining(timeoutMillis, start))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // what is left of timeoutMillis since start; zero makes the next
+    // lock a try-lock
+    private static long remaining(long timeoutMillis, long start) {
+        if (timeoutMillis <= 0) {
+            return timeoutMillis;
+        }
+        return Math.max(0, timeoutMillis - (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Records the range in the index of the table and locks it, then
+     * locks the rows being written inside it.
+     *
+     * @see LockManager#lockRange
+     */
+    public boolean lockRange(int xid, String table, String lo, String hi)
+        throws DeadlockException
+    {
+        if (table == null || lo == null || hi == null || lo.compareTo(hi) > 0) {
+            return false;
+        }
+        if (this.ranges.open(table)) {
+            // a writer granted from now on finds the index and records
+            // its rows; those granted so far are not in it
+            this.ranges.opened(table, holders(table, LockManager.READ));
+        }
+        if (!indexed(table)) {
+            return lock(xid, table, LockManager.READ);
+        }
+        if (!lock(xid, table, LockManager.IS)) {
+            return false;
+        }
+        ArrayList<String> rows = this.ranges.addRange(xid, table, lo, hi);
+        if (!lock(xid, RangeLocks.item(table, lo, hi), LockManager.READ)) {
+            return false;
+        }
+        int size = rows.size();
+        for (int i = 0; i < size; i++) {
+            if (!lock(xid, table, rows.get(i), LockManager.READ)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns true if the range index of table holds every row being
+    // written in it: the transactions that were writing the table when
+    // the index was opened have all finished, as they no longer hold it
+    // in a mode conflicting with S
+    private boolean indexed(String table) {
+        ArrayList<Integer> unindexed = this.ranges.unindexed(table);
+        if (unindexed == null) {
+            // not recorded yet by the transaction that opened the index
+            return false;
+        }
+        int size = unindexed.size();
+        for (int i = 0; i < size; i++) {
+            int writer = unindexed.get(i);
+            int mode = heldMode(writer, table);
+            if (mode != LockModes.NONE && !LockModes.compatible(mode, LockManager.READ)) {
+                return false;
+            }
+            this.ranges.indexed(table, writer);
+        }
+        return true;
+    }
+
+    public boolean lock(int xid, String strData, int lockType)
+        throws DeadlockException
+    {
+        return lock(xid, strData, lockType, -1);
+    }
+
+    public boolean tryLock(int xid, String strData, int lockType)
+        throws DeadlockException
+    {
+        return lock(xid, strData, lockType, 0);
+    }
+
+    /**
+     * Locks the data item through the engine, tracing the request if
+     * the transaction is traced.
+     *
+     * @see LockManager#lock(int, String, int, long)
+     */
+    public boolean lock(int xid, String strData, int lockType, long timeoutMillis)
+        throws DeadlockException
+    {
+        if (!this.trace.traced(xid)) {
+            return lockItem(xid, strData, lockType, timeoutMillis);
+        }
+        LockEvent event = this.trace.begin(xid, strData, lockType);
+        try {
+            boolean granted = lockItem(xid, strData, lockType, timeoutMillis);
+            this.trace.end(event, granted ? LockEvent.GRANTED : LockEvent.REFUSED);
+            return granted;
+        }
+        catch (DeadlockException deadlock) {
+            this.trace.end(event, LockEvent.DEADLOCK);
+            throw deadlock;
+        }
+    }
+
+    // the engine's lock(int, String, int, long)
+    abstract boolean lockItem(int xid, String strData, int lockType, long timeoutMillis)
+        throws DeadlockException;
+
+    /**
+     * Tries the lock at once and, if it has to wait, hands the blocking
+     * wait to the wait executor.  Engines that can queue a request
+     * without a thread override this.
+     *
+     * @see LockManager#lockAsync
+     */
+    public CompletableFuture<Boolean> lockAsync(final int xid, final String strData,
+                                                final int lockType, final long timeoutMillis)
+    {
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        traceAsync(xid, strData, lockType, future);
+        try {
+            boolean granted = lockItem(xid, strData, lockType, 0);
+            if (granted || timeoutMillis == 0) {
+                future.complete(granted);
+                return future;
+            }
+        }
+        catch (DeadlockException deadlock) {
+            future.completeExceptionally(deadlock);
+            return future;
+        }
+        this.waitExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    future.complete(lockItem(xid, strData, lockType, timeoutMillis));
+                }
+                catch (DeadlockException deadlock) {
+                    future.completeExceptionally(deadlock);
+                }
+            }
+        });
+        return future;
+    }
+
+    // traces the asynchronous request whose future is given, if xid is
+    // traced, as one event ending when the future completes
+    void traceAsync(int xid, String strData, int lockType, CompletableFuture<Boolean> future) {
+        if (!this.trace.traced(xid)) {
+            return;
+        }
+        final LockEvent event = this.trace.begin(xid, strData, lockType);
+        future.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            public void accept(Boolean granted, Throwable failure) {
+                int outcome = (failure != null) ? LockEvent.DEADLOCK
+                    : granted ? LockEvent.GRANTED : LockEvent.REFUSED;
+                AbstractLockManager.this.trace.end(event, outcome);
+            }
+        });
+    }
+
+    // completes the future of an asynchronous request on the wait
+    // executor, so that dependent actions never run under a lock table
+    // monitor; deadlock, if not null, fails the request
+    void complete(final CompletableFuture<Boolean> future, final boolean granted,
+                  final DeadlockException deadlock)
+    {
+        this.waitExecutor.execute(new Runnable() {
+            public void run() {
+                if (deadlock != null) {
+                    future.completeExceptionally(deadlock);
+                } else {
+                    future.complete(granted);
+                }
+            }
+        });
+    }
+
+    public abstract boolean unlockAll(int xid);
+
+    // Records that transaction xid is about to wait for the
+    // transactions in blockers, and breaks every waits-for cycle this
+    // closes, or applies wound-wait or wait-die.  Throws
+    // DeadlockException if xid itself has to abort; any other victim is
+    // woken up through abortWaiter().
+    void checkDeadlock(int xid, ArrayList<Integer> blockers)
+        throws DeadlockException
+    {
+        this.trace.blocked(xid, blockers);
+        if (this.deadlockMode == LockManager.WAIT_DIE) {
+            int size = blockers.size();
+            for (int i = 0; i < size; i++) {
+                if (blockers.get(i) < xid) {
+                    throw new DeadlockException(xid, "Wait-die, younger than " + blockers.get(i) + "...deadlock.");
+                }
+            }
+            return;
+        }
+        if (this.deadlockMode == LockManager.WOUND_WAIT) {
+            // we may have been wounded since we last checked
+            checkWounded(xid);
+            int size = blockers.size();
+            for (int i = 0; i < size; i++) {
+                int blocker = blockers.get(i);
+                if (blocker > xid) {
+                    synchronized (this.wounded) {
+                        this.wounded.add(blocker);
+                        this.anyWounded = true;
+                    }
+                    abortWaiter(blocker);
+                }
+            }
+            return;
+        }
+        if (this.deadlockMode != LockManager.DETECT) {
+            return;
+        }
+        this.waitsFor.waitFor(xid, blockers);
+        // the new edges may close more than one cycle
+        ArrayList<Integer> cycle;
+        while ((cycle = this.waitsFor.findCycle(xid)) != null) {
+            int victim = chooseVictim(cycle);
+            this.waitsFor.clear(victim);
+            if (victim == xid) {
+                throw new DeadlockException(xid, "Waits-for cycle " + cycle + "...deadlock.");
+            }
+            abortWaiter(victim);
+        }
+    }
+
+    // throws DeadlockException if transaction xid has been wounded by
+    // an older one
+    void checkWounded(int xid) throws DeadlockException {
+        if (!this.anyWounded) {
+            return;
+        }
+        synchronized (this.wounded) {
+            if (this.wounded.contains(xid)) {
+                throw new DeadlockException(xid, "Wounded by an older transaction...deadlock.");
+            }
+        }
+    }
+
+    void unwound(int xid) {
+        if (!this.anyWounded) {
+            return;
+        }
+        synchronized (this.wounded) {
+            this.wounded.remove(xid);
+            this.anyWounded = !this.wounded.isEmpty();
+        }
+    }
+
+    // the reason a waiter woken up through abortWaiter() gives
+    String abortMessage() {
+        if (this.deadlockMode == LockManager.WOUND_WAIT) {
+            return "Wounded by an older transaction...deadlock.";
+        }
+        return "Waits-for cycle...deadlock.";
+    }
+
+    private int chooseVictim(ArrayList<Integer> cycle) {
+        int victim = cycle.get(0);
+        int victimLocks = (this.victimRule == LockManager.VICTIM_FEWEST_LOCKS) ? locksHeld(victim) : 0;
+        int size = cycle.size();
+        for (int i = 1; i < size; i++) {
+            int xid = cycle.get(i);
+            if (this.victimRule == LockManager.VICTIM_FEWEST_LOCKS) {
+                int locks = locksHeld(xid);
+                if (locks < victimLocks || (locks == victimLocks && xid > victim)) {
+                    victim = xid;
+                    victimLocks = locks;
+                }
+            } else if (xid > victim) {
+                // transaction ids grow with age, the youngest has the largest
+                victim = xid;
+            }
+        }
+        return victim;
+    }
+
+    // number of locks held by transaction xid
+    abstract int locksHeld(int xid);
+
+    // the mode transaction xid holds data item strData in, or
+    // LockModes.NONE
+    abstract int heldMode(int xid, String strData);
+
+    // wakes up waiting transaction xid, which has been chosen as a
+    // deadlock victim, so that it throws DeadlockException
+    abstract void abortWaiter(int xid);
+
+    // returns true if transaction xid has a lock request waiting
+    abstract boolean isWaiting(int xid);
+
+    // the transactions holding strData in a mode that conflicts with
+    // lockType
+    abstract ArrayList<Integer> holders(String strData, int lockType);
+}
@@ -17,6 +17,13 @@ public class DataObj extends TrxnObj
         super(xid, strData, lockType);
     }
     
+    // reuses this object for another lock
+    void reset(int xid, String strData, int lockType) {
+        this.xid = (xid > 0) ? xid : 0;
+        this.strData = strData;
+        this.lockType = lockType;
+    }
+    
     public int hashCode() {
         return strData.hashCode();
     }
@@ -0,0 +1,125 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+    The deadlock timeouts of waiting transactions, kept in a list
+    ordered by deadline and linked through the WaitObjs themselves, so
+    that adding and removing a waiter allocates nothing.  Every waiter
+    gets the same timeout, so a new deadline goes at the tail and both
+    operations take constant time.  A single task on the shared timer
+    sweeps the list when its first deadline is due, expires the waiters
+    whose time is up, and schedules itself for the next deadline; while
+    nobody waits it is not scheduled at all.  Waiting threads therefore
+    sleep until they are signalled, and never wake up just to look at
+    the clock.
+*/
+
+class DeadlineQueue
+{
+    private WaitObj head = null;
+    private WaitObj tail = null;
+    private ScheduledFuture<?> sweep = null;
+    private long sweepAt;    // System.nanoTime() the sweep is due
+
+    private final Runnable sweeper = new Runnable() {
+        public void run() {
+            sweep();
+        }
+    };
+
+    // starts the timeout of waiter
+    synchronized void add(WaitObj waiter, long timeoutMillis) {
+        waiter.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // from the tail back, in case the timeout has been changed
+        WaitObj after = this.tail;
+        while (after != null && after.deadline - waiter.deadline > 0) {
+            after = after.prevDeadline;
+        }
+        waiter.prevDeadline = after;
+        waiter.nextDeadline = (after == null) ? this.head : after.nextDeadline;
+        if (waiter.nextDeadline == null) {
+            this.tail = waiter;
+        } else {
+            waiter.nextDeadline.prevDeadline = waiter;
+        }
+        if (after == null) {
+            this.head = waiter;
+            schedule(waiter.deadline);
+        } else {
+            after.nextDeadline = waiter;
+        }
+        waiter.timed = true;
+    }
+
+    // stops the timeout of waiter, if it is running
+    synchronized void remove(WaitObj waiter) {
+        if (!waiter.timed) {
+            return;
+        }
+        unlink(waiter);
+        if (this.head == null && this.sweep != null) {
+            this.sweep.cancel(false);
+            this.sweep = null;
+        }
+    }
+
+    private void unlink(WaitObj waiter) {
+        if (waiter.prevDeadline == null) {
+            this.head = waiter.nextDeadline;
+        } else {
+            waiter.prevDeadline.nextDeadline = waiter.nextDeadline;
+        }
+        if (waiter.nextDeadline == null) {
+            this.tail = waiter.prevDeadline;
+        } else {
+            waiter.nextDeadline.prevDeadline = waiter.prevDeadline;
+        }
+        waiter.prevDeadline = null;
+        waiter.nextDeadline = null;
+        waiter.timed = false;
+    }
+
+    // makes sure a sweep runs by deadline; must be called with the
+    // monitor held
+    private void schedule(long deadline) {
+        if (this.sweep != null) {
+            if (this.sweepAt - deadline <= 0) {
+                return;
+            }
+            this.sweep.cancel(false);
+        }
+        this.sweepAt = deadline;
+        this.sweep = AbstractLockManager.TIMER.schedule(this.sweeper, deadline - System.nanoTime(),
+                                                        TimeUnit.NANOSECONDS);
+    }
+
+    // expires the waiters whose deadline has passed, outside the
+    // monitor
+    private void sweep() {
+        ArrayList<WaitObj> expired = null;
+        synchronized (this) {
+            this.sweep = null;
+            long now = System.nanoTime();
+            while (this.head != null && this.head.deadline - now <= 0) {
+                WaitObj waiter = this.head;
+                unlink(waiter);
+                if (expired == null) {
+                    expired = new ArrayList<WaitObj>();
+                }
+                expired.add(waiter);
+            }
+            if (this.head != null) {
+                schedule(this.head.deadline);
+            }
+        }
+        if (expired != null) {
+            int size = expired.size();
+            for (int i = 0; i < size; i++) {
+                expired.get(i).expire();
+            }
+        }
+    }
+}
@@ -6,15 +6,22 @@ package lockmgr;
 public class DeadlockException extends Exception
 {
     private int xid = 0;
+    private String reason;
     
     public DeadlockException (int xid, String msg)
     {
         super("The transaction " + xid + " is deadlocked:" + msg);
         this.xid = xid;
+        this.reason = msg;
     }
     
     int GetXId()
     {
         return xid;
     }
+
+    String getReason()
+    {
+        return reason;
+    }
 }
@@ -0,0 +1,554 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Vector;
+
+/**
+ * The original Lock Manager: a hash table of lock records, with
+ * waiting threads parked on their own monitors.  Every instance has
+ * its own lock space.
+ */
+public class DefaultLockManager extends AbstractLockManager
+{
+    private static final int TABLE_SIZE = 2039;    // initial capacity; the tables grow
+    private LockHashTable lockTable = new LockHashTable(TABLE_SIZE);
+    private LockHashTable waitTable = new LockHashTable(TABLE_SIZE);
+    // xid -> the WaitObj of its lock request that has had to wait, until
+    // it is granted or given up; guarded by its own monitor
+    private IntHashMap<WaitObj> waiting = new IntHashMap<WaitObj>();
+    // the deadlock timeouts of the waiting requests
+    private DeadlineQueue deadlines = new DeadlineQueue();
+    // reused by lockConflict and wakeWaiters, under the lockTable monitor
+    private ConflictCheck conflictCheck = new ConflictCheck();
+    // waiting transactions chosen as deadlock victims, not yet woken up
+    private HashSet<Integer> victims = new HashSet<Integer>();
+    // xid -> the locks it holds, the same DataObj instances as in
+    // lockTable; guarded by its own monitor
+    private IntHashMap<ArrayList<DataObj>> xidTable = new IntHashMap<ArrayList<DataObj>>();
+    // released lock records and per-transaction lists kept for reuse,
+    // guarded by lockTable and xidTable respectively
+    private static final int SPARE_LIMIT = 1024;
+    private ArrayList<DataObj> spareLocks = new ArrayList<DataObj>();
+    private ArrayList<ArrayList<DataObj>> spareLists = new ArrayList<ArrayList<DataObj>>();
+
+    /* Outcome of checking a lock request against the lock table. */
+    private static final int GRANT = 0;
+    private static final int CONFLICT = 1;
+    private static final int CONVERTED = 2;
+    private static final int REDUNDANT = 3;
+
+    public DefaultLockManager() {
+        super();
+    }
+
+    /**
+     * Locks the data item identified by <tt>strData</tt> in mode
+     * <tt>lockType</tt> on behalf of the transaction with id
+     * <tt>xid</tt>.  A conflicting request parks the calling thread
+     * until an unlock wakes it up to check the lock table again, or
+     * until <tt>timeoutMillis</tt> have passed.
+     *
+     * @see LockManager#lock(int, String, int, long)
+     */
+    boolean lockItem(int xid, String strData, int lockType, long timeoutMillis)
+	throws DeadlockException 
+    {
+    
+        // if any parameter is invalid, then return false
+        if (xid < 0) { 
+            return false;
+        }
+        
+        if (strData == null) {
+            return false;
+        }
+        
+        if (!LockModes.isValid(lockType)) { 
+            return false;
+        }
+
+        checkWounded(xid);
+        
+        // return true when there is no lock conflict or throw a deadlock
+        // exception.  Nothing is allocated unless the request has to
+        // wait; a new lock reuses a released lock record.
+        boolean bWaited = false;
+        long deadline = 0;
+        long waitStart = 0;
+        ArrayList<Integer> blockers = null;
+        WaitObj waitObj = null;
+        int conflict;
+
+        while (true) {
+            long waitMillis = -1;
+            synchronized (this.lockTable) {
+                // check if this lock request conflicts with existing locks
+                conflict = lockConflict(xid, strData, lockType);
+                if (conflict != DefaultLockManager.CONFLICT) {
+                    // no lock conflict
+                    if (bWaited) {
+                        stopWaiting(xid);
+                    }
+                         
+                    if (conflict == DefaultLockManager.GRANT) {
+                        // a lock request that is not lock conversion
+                        DataObj dataObj = newLock(xid, strData, lockType);
+                        this.lockTable.add(dataObj);
+                        synchronized (this.xidTable) {
+                            ArrayList<DataObj> locked = this.xidTable.get(xid);
+                            if (locked == null) {
+                                int spare = this.spareLists.size();
+                                locked = (spare > 0) ? this.spareLists.remove(spare - 1) : new ArrayList<DataObj>();
+                                this.xidTable.put(xid, locked);
+                            }
+                            locked.add(dataObj);
+                        }
+                    } else {
+                        // the lock has been converted in place, or the
+                        // redundant lock request is ignored
+                    }
+                    break;
+                }
+                // lock conflict exists, wait unless out of time
+                if (timeoutMillis > 0) {
+                    long now = System.currentTimeMillis();
+                    if (deadline == 0) {
+                        deadline = now + timeoutMillis;
+                    }
+                    waitMillis = deadline - now;
+                }
+                if (timeoutMillis < 0 || waitMillis > 0) {
+                    blockers = blockers(xid, strData, lockType);
+                    waitObj = register(xid, strData, lockType);
+                }
+            }
+            if (!bWaited) {
+                this.stats.conflict(this.stats.counters(strData));
+                waitStart = System.nanoTime();
+            }
+            if (timeoutMillis == 0) {
+                return false;
+            } else if (timeoutMillis > 0 && waitMillis <= 0) {
+                if (bWaited) {
+                    stopWaiting(xid);
+                }
+                return false;
+            }
+            try {
+                waitLock(waitObj, blockers, waitMillis);
+            }
+            catch (DeadlockException deadlock) {
+                this.stats.deadlock(this.stats.counters(strData));
+                throw deadlock;
+            }
+            bWaited = true;
+        }
+
+        // count outside the lock table monitor
+        if (conflict != DefaultLockManager.REDUNDANT) {
+            LockStats.Counters counters = this.stats.counters(strData);
+            this.stats.acquired(counters);
+            if (conflict == DefaultLockManager.CONVERTED) {
+                this.stats.upgrade(counters);
+            }
+            if (bWaited) {
+                this.stats.waited(counters, waitStart);
+            }
+        }
+        return true;
+    }
+
+    // The WaitObj of the lock request of xid, registered in the
+    // waitTable; the first wait of a request starts its deadlock
+    // timeout.  Must be called with lockTable held, so that an unlock
+    // cannot slip in between finding the conflict and registering.
+    private WaitObj register(int xid, String strData, int lockType) {
+        WaitObj waitObj;
+        boolean first = false;
+        synchronized (this.waiting) {
+            waitObj = this.waiting.get(xid);
+            if (waitObj == null) {
+                waitObj = new WaitObj(xid, strData, lockType);
+                this.waiting.put(xid, waitObj);
+                first = true;
+            }
+        }
+        if (first) {
+            this.deadlines.add(waitObj, AbstractLockManager.DEADLOCK_TIMEOUT);
+        }
+        waitObj.rearm();
+        synchronized (this.waitTable) {
+            // keep its place if it is still registered
+            if (!this.waitTable.contains(waitObj)) {
+                this.waitTable.add(waitObj);
+            }
+        }
+        return waitObj;
+    }
+
+    // forgets that transaction xid has been waiting for a lock, as it
+    // has been granted or has given up
+    private void stopWaiting(int xid) {
+        WaitObj waitObj;
+        synchronized (this.waiting) {
+            waitObj = this.waiting.remove(xid);
+        }
+        if (waitObj != null) {
+            this.deadlines.remove(waitObj);
+            synchronized (this.waitTable) {
+                this.waitTable.remove(waitObj);
+            }
+        }
+        this.waitsFor.clear(xid);
+        forgetVictim(xid);
+    }
+
+    // a lock record for a new lock, reused from a released one if
+    // possible; must be called with lockTable held.
+    private DataObj newLock(int xid, String strData, int lockType) {
+        int spare = this.spareLocks.size();
+        if (spare == 0) {
+            return new DataObj(xid, strData, lockType);
+        }
+        DataObj dataObj = this.spareLocks.remove(spare - 1);
+        dataObj.reset(xid, strData, lockType);
+        return dataObj;
+    }
+
+    /**
+     * Unlocks all data items locked on behalf of the transaction with
+     * id <tt>xid</tt>, waking up the transactions waiting for them.
+     *
+     * @see LockManager#unlockAll
+     */
+    public boolean unlockAll(int xid) {
+
+        // if any parameter is invalid, then return false
+        if (xid < 0) {
+            return false;
+        }
+
+        this.waitsFor.clear(xid);
+        if (isWaiting(xid)) {
+            // a request of its own still waits, as an asynchronous one
+            // can; it gives up as a victim and then forgets it was one
+            abortWaiter(xid);
+        } else {
+            forgetVictim(xid);
+        }
+        unwound(xid);
+        this.ranges.unlockAll(xid);
+
+        ArrayList<DataObj> locked;
+        synchronized (this.xidTable) {
+            locked = this.xidTable.remove(xid);
+        }
+        if (locked == null) {
+            return true;
+        }
+
+        // release one item at a time, so that other transactions can
+        // get at the lock table in between
+        int size = locked.size();
+        for (int i = (size - 1); i >= 0; i--) {
+            DataObj dataObj = locked.get(i);
+            synchronized (this.lockTable) {
+                this.lockTable.remove(dataObj);
+                wakeWaiters(dataObj);
+                if (this.spareLocks.size() < DefaultLockManager.SPARE_LIMIT) {
+                    this.spareLocks.add(dataObj);
+                }
+            }
+        }
+        locked.clear();
+        synchronized (this.xidTable) {
+            if (this.spareLists.size() < DefaultLockManager.SPARE_LIMIT) {
+                this.spareLists.add(locked);
+            }
+        }
+
+        return true;
+    }
+
+    // wakes up the transactions waiting for the item dataObj, which
+    // has just been unlocked; must be called with lockTable held.
+    private void wakeWaiters(DataObj dataObj) {
+        Vector<XObj> waitVector;
+        WaitObj waitObj;
+
+        // check if there are any waiting transactions. 
+        synchronized (this.waitTable) {
+            if (this.waitTable.first(dataObj.key()) < 0) {
+                return;
+            }
+            // get all the transactions waiting on this dataObj, oldest
+            // first
+            waitVector = this.waitTable.elements(dataObj);
+            ArrayList<DataObj> woken = new ArrayList<DataObj>();
+            int waitSize = waitVector.size();
+            boolean blocked = false;
+            for (int j = 0; j < waitSize; j++) {
+                waitObj = (WaitObj) waitVector.elementAt(j);
+                // stop granting as soon as you find a request that
+                // conflicts with a lock still held, or with a request
+                // woken up ahead of it
+                if (!blocked) {
+                    this.conflictCheck.reset(waitObj.getXId(), waitObj.getLockType());
+                    blocked = !this.lockTable.forEachMatching(waitObj.key(), this.conflictCheck)
+                        || conflicts(woken, waitObj);
+                }
+                if (blocked) {
+                    // it keeps its place, but now waits for other
+                    // transactions than the ones it has told the
+                    // deadlock detector about; woken up, it tells it
+                    // again
+                    waitObj.signal();
+                    continue;
+                }
+                // remove interrupted thread from waitTable.
+                this.waitTable.remove(waitObj);
+                woken.add(waitObj);
+
+                waitObj.signal();
+            }
+            this.conflictCheck.reset(0, 0);
+        }
+    }
+
+    // returns true if the lock request on dataObj conflicts with one
+    // in list made by another transaction
+    private static boolean conflicts(ArrayList<DataObj> list, DataObj dataObj) {
+        int size = list.size();
+        for (int i = 0; i < size; i++) {
+            DataObj dataObj2 = list.get(i);
+            if (dataObj2.getXId() != dataObj.getXId()
+                && !LockModes.compatible(dataObj2.getLockType(), dataObj.getLockType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Checks a lock request of transaction xid against the locks on
+    // its data item as they are visited, and stops at the first one
+    // that settles it: a lock of xid's own that covers the request, or
+    // a lock of another transaction that conflicts with it.  As the
+    // locks held are compatible with each other, neither can be
+    // followed by the other.  One instance is reused under the
+    // lockTable monitor, so that checking allocates nothing.
+    private static class ConflictCheck implements XObjVisitor
+    {
+        int xid;
+        int lockType;
+        int outcome;    // REDUNDANT or CONFLICT once stopped
+        DataObj held;    // xid's own lock, if visited
+        int others;    // bit set of the modes other transactions hold
+
+        void reset(int xid, int lockType) {
+            this.xid = xid;
+            this.lockType = lockType;
+            this.held = null;
+            this.others = 0;
+        }
+
+        public boolean visit(XObj xobj) {
+            DataObj dataObj = (DataObj) xobj;
+            if (dataObj.getXId() == this.xid) {
+                // the transaction already has a lock on this data
+                // item which means that it is either relocking it or
+                // is converting the lock
+                this.held = dataObj;
+                if (LockModes.covers(dataObj.getLockType(), this.lockType)) {
+                    // the lock it has is at least as strong as the one
+                    // requested, so this lock request is redundant.
+                    this.outcome = DefaultLockManager.REDUNDANT;
+                    return false;
+                }
+            } else if (!LockModes.compatible(dataObj.getLockType(), this.lockType)) {
+                this.outcome = DefaultLockManager.CONFLICT;
+                return false;
+            } else {
+                this.others |= 1 << dataObj.getLockType();
+            }
+            return true;
+        }
+    }
+    
+    // checks the lock request of transaction xid on strData against
+    // the already existing locks, and returns CONFLICT if it conflicts
+    // with them.  If the lock request is a redundant one (for eg: if a
+    // transaction holds a read lock on certain data item and again
+    // requests for a read lock), REDUNDANT is returned and the request
+    // is ignored.  If the lock request is a conversion to a stronger
+    // mode (for eg: from UPDATE lock to WRITE lock) that no other lock
+    // is in the way of, the lock is converted in place and CONVERTED is
+    // returned.  Must be called with lockTable held; visits the locks
+    // on the item in place, and stops at the first one that settles
+    // the outcome.
+    private int lockConflict(int xid, String strData, int lockType)
+    {
+        ConflictCheck check = this.conflictCheck;
+        check.reset(xid, lockType);
+        boolean visitedAll = this.lockTable.forEachMatching(strData.hashCode(), check);
+        DataObj held = check.held;
+        int others = check.others;
+        check.reset(0, 0);
+        if (!visitedAll) {
+            return check.outcome;
+        }
+
+        // a conversion has to be compatible with the other locks in
+        // the converted mode
+        int mode = (held == null) ? lockType : LockModes.supremum(held.getLockType(), lockType);
+        for (int other = 0; others != 0; other++, others >>>= 1) {
+            if ((others & 1) != 0 && !LockModes.compatible(other, mode)) {
+                return DefaultLockManager.CONFLICT;
+            }
+        }
+        if (held != null) {
+            held.setLockType(mode);
+            return DefaultLockManager.CONVERTED;
+        }
+        return DefaultLockManager.GRANT;
+
+    }
+    
+    // returns the transactions holding locks that conflict with the
+    // lock request of transaction xid on strData; must be called with
+    // lockTable held.
+    private ArrayList<Integer> blockers(int xid, String strData, int lockType) {
+        int key = strData.hashCode();
+        ArrayList<Integer> blockers = new ArrayList<Integer>();
+        for (int slot = this.lockTable.first(key); slot >= 0; slot = this.lockTable.next(key, slot)) {
+            DataObj dataObj2 = (DataObj) this.lockTable.at(slot);
+            if (dataObj2.getXId() != xid
+                && !LockModes.compatible(dataObj2.getLockType(), lockType)) {
+                blockers.add(dataObj2.getXId());
+            }
+        }
+        return blockers;
+    }
+
+    // waits to be woken up by an unlock, for at most waitMillis if that
+    // is not negative; throws DeadlockException when the request is
+    // deadlocked or its deadlock timeout expires
+    private void waitLock(WaitObj waitObj, ArrayList<Integer> blockers, long waitMillis) throws DeadlockException {
+        int xid = waitObj.getXId();
+        try {
+            checkDeadlock(xid, blockers);
+        }
+        catch (DeadlockException deadlock) {
+            cleanupDeadlock(waitObj, deadlock.getReason());
+        }
+
+        // decide under the waitObj's monitor, but clean up after leaving
+        // it: an unlocking thread takes lockTable and waitTable before
+        // the monitor of the waitObj it signals
+        String deadlock = null;
+        synchronized (waitObj) {
+            try {
+                if (!isVictim(xid) && !waitObj.isTimedOut()) {
+                    // the DeadlineQueue wakes us up when time is up
+                    waitObj.await((waitMillis >= 0) ? waitMillis : 0);
+                }
+                if (isVictim(xid)) {
+                    deadlock = abortMessage();
+                } else if (waitObj.isTimedOut()) {
+                    // the transaction has been waiting for a period greater than the timeout period
+                    deadlock = "Sleep timeout...deadlock.";
+                }
+            }
+            catch (InterruptedException e) {
+                System.out.println("Thread interrupted?");
+            }
+        }
+        if (deadlock != null) {
+            cleanupDeadlock(waitObj, deadlock);
+        }
+    }
+    
+    // cleanupDeadlock forgets the waiting request and throws
+    // DeadlockException
+    private void cleanupDeadlock(WaitObj waitObj, String msg)
+        throws DeadlockException
+    {
+        stopWaiting(waitObj.getXId());
+        throw new DeadlockException(waitObj.getXId(), msg);
+    }
+
+    private void forgetVictim(int xid) {
+        synchronized (this.victims) {
+            if (!this.victims.isEmpty()) {
+                this.victims.remove(xid);
+            }
+        }
+    }
+
+    private boolean isVictim(int xid) {
+        synchronized (this.victims) {
+            return this.victims.contains(xid);
+        }
+    }
+
+    // number of locks held by transaction xid
+    int locksHeld(int xid) {
+        synchronized (this.xidTable) {
+            ArrayList<DataObj> locked = this.xidTable.get(xid);
+            return (locked == null) ? 0 : locked.size();
+        }
+    }
+
+    // the mode transaction xid holds data item strData in, or
+    // LockModes.NONE
+    int heldMode(int xid, String strData) {
+        synchronized (this.lockTable) {
+            DataObj dataObj = find(xid, strData);
+            return (dataObj == null) ? LockModes.NONE : dataObj.getLockType();
+        }
+    }
+
+    // returns true if transaction xid has a lock request waiting; it
+    // keeps its WaitObj until granted or deadlocked
+    boolean isWaiting(int xid) {
+        synchronized (this.waiting) {
+            return this.waiting.containsKey(xid);
+        }
+    }
+
+    ArrayList<Integer> holders(String strData, int lockType) {
+        synchronized (this.lockTable) {
+            // no transaction has a negative xid
+            return blockers(-1, strData, lockType);
+        }
+    }
+
+    // wakes up waiting transaction xid, which has been chosen as a
+    // deadlock victim, so that it throws DeadlockException
+    void abortWaiter(int xid) {
+        synchronized (this.victims) {
+            this.victims.add(xid);
+        }
+        WaitObj waiter;
+        synchronized (this.waiting) {
+            waiter = this.waiting.get(xid);
+        }
+        if (waiter != null) {
+            waiter.signal();
+        }
+    }
+
+    // the lock transaction xid holds on strData, or null; must be
+    // called with lockTable held.
+    private DataObj find(int xid, String strData)
+    {
+        int key = strData.hashCode();
+        for (int slot = this.lockTable.first(key); slot >= 0; slot = this.lockTable.next(key, slot)) {
+            DataObj dataObj = (DataObj) this.lockTable.at(slot);
+            if (dataObj.getXId() == xid) {
+                return dataObj;
+            }
+        }
+        return null;
+    }
+}
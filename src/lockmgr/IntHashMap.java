@@ -0,0 +1,139 @@
+package lockmgr;
+
+/*
+    Hash map from primitive int keys (transaction ids) to objects.
+    Open addressing with linear probing, so lookups neither box the key
+    nor allocate an entry object.  Not synchronized.
+*/
+
+class IntHashMap<V>
+{
+    private static final int FREE = -1;    // keys are non-negative xids
+
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    IntHashMap() {
+        this(16);
+    }
+
+    IntHashMap(int capacity) {
+        int n = 4;
+        while (n < 2 * capacity) {
+            n <<= 1;
+        }
+        allocate(n);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean containsKey(int key) {
+        return this.keys[slot(key)] == key;
+    }
+
+    V get(int key) {
+        int slot = slot(key);
+        return (this.keys[slot] == key) ? value(slot) : null;
+    }
+
+    V put(int key, V value) {
+        int slot = slot(key);
+        if (this.keys[slot] == key) {
+            V old = value(slot);
+            this.values[slot] = value;
+            return old;
+        }
+        this.keys[slot] = key;
+        this.values[slot] = value;
+        if (++this.size > (this.keys.length >> 1)) {
+            resize(this.keys.length << 1);
+        }
+        return null;
+    }
+
+    V remove(int key) {
+        int slot = slot(key);
+        if (this.keys[slot] != key) {
+            return null;
+        }
+        V old = value(slot);
+        this.size--;
+
+        // shift the rest of the probe sequence back so that no
+        // tombstones are needed
+        int mask = this.keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (this.keys[next] != FREE) {
+            int home = hash(this.keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.keys[hole] = this.keys[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.keys[hole] = FREE;
+        this.values[hole] = null;
+        return old;
+    }
+
+    // A cursor over all entries: slots() is the number of slots, and
+    // keyAt() and valueAt() give the entry in a slot, keyAt() returning
+    // -1 for a free slot.  The map must not change while iterating.
+    int slots() {
+        return this.keys.length;
+    }
+
+    int keyAt(int slot) {
+        return this.keys[slot];
+    }
+
+    V valueAt(int slot) {
+        return value(slot);
+    }
+
+    // the value in slot; values holds nothing but the Vs put() stores,
+    // in an Object[] as arrays of a type variable cannot be created
+    @SuppressWarnings("unchecked")
+    private V value(int slot) {
+        return (V) this.values[slot];
+    }
+
+    // the slot holding key, or the free slot where it would go
+    private int slot(int key) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while (this.keys[slot] != key && this.keys[slot] != FREE) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        java.util.Arrays.fill(this.keys, FREE);
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = slot(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package lockmgr;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the lock statistics of one data item, as returned by
+ * LockStats.hotKeys.  Wait times are histogrammed by powers of two:
+ * bucket 0 counts waits under 1 ms, bucket i those of 2^(i-1) ms up to
+ * 2^i ms, and the last bucket everything longer.
+ */
+public class KeyStats implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private String key;
+    private long acquisitions;
+    private long conflicts;
+    private long upgrades;
+    private long deadlocks;
+    private long waitMillis;
+    private long[] waitHistogram;
+    private long overtakes;
+    private long mostOvertaken;
+
+    KeyStats(String key, long acquisitions, long conflicts, long upgrades,
+             long deadlocks, long waitMillis, long[] waitHistogram,
+             long overtakes, long mostOvertaken) {
+        this.key = key;
+        this.acquisitions = acquisitions;
+        this.conflicts = conflicts;
+        this.upgrades = upgrades;
+        this.deadlocks = deadlocks;
+        this.waitMillis = waitMillis;
+        this.waitHistogram = waitHistogram;
+        this.overtakes = overtakes;
+        this.mostOvertaken = mostOvertaken;
+    }
+
+    // the data item, table name followed by the row for a row lock
+    public String getKey() {
+        return this.key;
+    }
+
+    // locks granted, at once or after waiting
+    public long getAcquisitions() {
+        return this.acquisitions;
+    }
+
+    // requests that found the item locked in a conflicting mode
+    public long getConflicts() {
+        return this.conflicts;
+    }
+
+    // conversions of a lock already held to a stronger mode
+    public long getUpgrades() {
+        return this.upgrades;
+    }
+
+    // requests aborted by a deadlock or the deadlock timeout
+    public long getDeadlocks() {
+        return this.deadlocks;
+    }
+
+    // total time spent waiting by requests that were granted
+    public long getWaitMillis() {
+        return this.waitMillis;
+    }
+
+    public long[] getWaitHistogram() {
+        return this.waitHistogram;
+    }
+
+    // times waiting requests were overtaken under the grant policy
+    public long getOvertakes() {
+        return this.overtakes;
+    }
+
+    // the most times one request was overtaken
+    public long getMostOvertaken() {
+        return this.mostOvertaken;
+    }
+
+    public String toString() {
+        StringBuffer histogram = new StringBuffer();
+        for (int i = 0; i < this.waitHistogram.length; i++) {
+            histogram.append(i == 0 ? "" : " ").append(this.waitHistogram[i]);
+        }
+        return this.key + ": acquisitions=" + this.acquisitions + " conflicts=" + this.conflicts
+            + " upgrades=" + this.upgrades + " deadlocks=" + this.deadlocks
+            + " waitMillis=" + this.waitMillis + " waits=[" + histogram + "]"
+            + " overtakes=" + this.overtakes + " mostOvertaken=" + this.mostOvertaken;
+    }
+}
@@ -0,0 +1,94 @@
+package lockmgr;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * One traced lock request, as returned by LockTrace.events: the data
+ * item and mode asked for, when the request was made and how long it
+ * took, the transactions it found holding the item in a conflicting
+ * mode, and how it ended.
+ */
+public class LockEvent implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    // how a request ended
+    public static final int GRANTED = 0;
+    public static final int REFUSED = 1;     // not granted in time
+    public static final int DEADLOCK = 2;    // aborted with DeadlockException
+
+    private int xid;
+    private String item;
+    private int lockType;
+    private long startMillis;
+    private long waitMicros;
+    private ArrayList<Integer> blockers = new ArrayList<Integer>();
+    private int outcome = LockEvent.REFUSED;
+    private transient long startNanos;
+    long sequence;    // the slot taken in the trace buffer
+
+    LockEvent(int xid, String item, int lockType) {
+        this.xid = xid;
+        this.item = item;
+        this.lockType = lockType;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    // adds the transactions the request waits for; called on every
+    // wait, so a holder is listed once however often it blocks
+    synchronized void blocked(ArrayList<Integer> blockers) {
+        int size = blockers.size();
+        for (int i = 0; i < size; i++) {
+            if (!this.blockers.contains(blockers.get(i))) {
+                this.blockers.add(blockers.get(i));
+            }
+        }
+    }
+
+    synchronized void end(int outcome) {
+        this.outcome = outcome;
+        this.waitMicros = (System.nanoTime() - this.startNanos) / 1000;
+    }
+
+    public int getXId() {
+        return this.xid;
+    }
+
+    // the data item, table name followed by the row for a row lock
+    public String getItem() {
+        return this.item;
+    }
+
+    public int getLockType() {
+        return this.lockType;
+    }
+
+    // System.currentTimeMillis() when the request was made
+    public long getStartMillis() {
+        return this.startMillis;
+    }
+
+    // how long the request took, waiting included
+    public long getWaitMicros() {
+        return this.waitMicros;
+    }
+
+    // the transactions the request waited for, empty if it did not wait
+    public synchronized ArrayList<Integer> getBlockers() {
+        return new ArrayList<Integer>(this.blockers);
+    }
+
+    public int getOutcome() {
+        return this.outcome;
+    }
+
+    public synchronized String toString() {
+        String outcome = (this.outcome == LockEvent.GRANTED) ? "granted"
+            : (this.outcome == LockEvent.DEADLOCK) ? "deadlock" : "refused";
+        return "xid=" + this.xid + " " + this.item + " mode=" + this.lockType
+            + " at=" + this.startMillis + " waitMicros=" + this.waitMicros
+            + " blockers=" + this.blockers + " " + outcome;
+    }
+}
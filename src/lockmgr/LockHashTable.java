@@ -0,0 +1,235 @@
+package lockmgr;
+
+import java.util.Vector;
+
+/*
+    Hash table for the Lock Manager, a replacement for TPHashTable.
+    Entries are kept in one array with open addressing and linear
+    probing, next to their key() in an int array, so a lookup compares
+    primitive keys and follows no chain.  The table doubles when it is
+    half full.  Several entries may share a key, e.g. the locks of
+    several readers of one data item; they lie in the probe sequence of
+    that key, in the order they were added.
+*/
+
+public class LockHashTable
+{
+    private int[] keys;
+    private XObj[] entries;    // null marks a free slot
+    private int size = 0;
+
+    LockHashTable(int iSize)
+    {
+        int n = 4;
+        while (n < 2 * iSize) {
+            n <<= 1;
+        }
+        this.keys = new int[n];
+        this.entries = new XObj[n];
+    }
+
+    // the number of slots
+    public int getSize()
+    {
+        return this.entries.length;
+    }
+
+    // the number of entries
+    public synchronized int size()
+    {
+        return this.size;
+    }
+
+    public synchronized void add(XObj xobj)
+    {
+        if (xobj == null) return;
+
+        if (this.size + 1 > (this.entries.length >> 1)) {
+            resize(this.entries.length << 1);
+        }
+        insert(xobj.key(), xobj);
+        this.size++;
+    }
+
+    // all entries with the key() of xobj, in the order they were added
+    public synchronized Vector<XObj> elements(XObj xobj)
+    {
+        if (xobj == null) return (new Vector<XObj>());
+
+        Vector<XObj> elemVect = new Vector<XObj>(24);
+        int key = xobj.key();
+        for (int slot = first(key); slot >= 0; slot = next(key, slot)) {
+            elemVect.addElement(this.entries[slot]);
+        }
+        return elemVect;
+    }
+
+    public synchronized boolean contains(XObj xobj)
+    {
+        return get(xobj) != null;
+    }
+
+    public synchronized boolean remove(XObj xobj)
+    {
+        if (xobj == null) return false;
+
+        int key = xobj.key();
+        for (int slot = first(key); slot >= 0; slot = next(key, slot)) {
+            if (xobj.equals(this.entries[slot])) {
+                delete(slot);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the entry equal to xobj, or null
+    public synchronized XObj get(XObj xobj)
+    {
+        if (xobj == null) return null;
+
+        int key = xobj.key();
+        for (int slot = first(key); slot >= 0; slot = next(key, slot)) {
+            if (xobj.equals(this.entries[slot])) {
+                return this.entries[slot];
+            }
+        }
+        return null;
+    }
+
+    public synchronized Vector<XObj> allElements()
+    {
+        Vector<XObj> hashContents = new Vector<XObj>(Math.max(this.size, 16));
+        for (int slot = 0; slot < this.entries.length; slot++) {
+            if (this.entries[slot] != null) {
+                hashContents.addElement(this.entries[slot]);
+            }
+        }
+        return hashContents;
+    }
+
+    // removes all entries with the key() of xobj
+    public synchronized void removeAll(XObj xobj)
+    {
+        if (xobj == null) return;
+
+        int key = xobj.key();
+        int mask = this.entries.length - 1;
+        int slot = hash(key) & mask;
+        while (this.entries[slot] != null) {
+            if (this.keys[slot] == key) {
+                // delete() moves a later entry into this slot, if any
+                delete(slot);
+            } else {
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    // calls visitor on each entry whose key() is <tt>key</tt>, in the
+    // order they were added, without copying them, until visit()
+    // returns false.  Returns true if every entry was visited.
+    // visit() must not change the table.
+    synchronized boolean forEachMatching(int key, XObjVisitor visitor)
+    {
+        for (int slot = first(key); slot >= 0; slot = next(key, slot)) {
+            if (!visitor.visit(this.entries[slot])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A cursor over the entries with key <tt>key</tt> that neither
+    // copies nor allocates: first() gives the slot of the first one,
+    // next() the slot of the one after <tt>slot</tt>, both -1 when
+    // there are no more, and at() the entry in a slot.  The caller must
+    // synchronize on the table and not change it while iterating.
+    int first(int key)
+    {
+        int mask = this.entries.length - 1;
+        return scan(key, hash(key) & mask);
+    }
+
+    int next(int key, int slot)
+    {
+        return scan(key, (slot + 1) & (this.entries.length - 1));
+    }
+
+    XObj at(int slot)
+    {
+        return this.entries[slot];
+    }
+
+    // the first slot from <tt>slot</tt> on holding an entry with key,
+    // or -1 if the probe sequence ends first
+    private int scan(int key, int slot)
+    {
+        int mask = this.entries.length - 1;
+        while (this.entries[slot] != null) {
+            if (this.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(int key, XObj xobj)
+    {
+        int mask = this.entries.length - 1;
+        int slot = hash(key) & mask;
+        while (this.entries[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        this.keys[slot] = key;
+        this.entries[slot] = xobj;
+    }
+
+    // empties slot, shifting the rest of its probe sequence back so
+    // that no tombstones are needed and entries keep their order
+    private void delete(int slot)
+    {
+        this.size--;
+        int mask = this.entries.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (this.entries[next] != null) {
+            int home = hash(this.keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.keys[hole] = this.keys[next];
+                this.entries[hole] = this.entries[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.entries[hole] = null;
+    }
+
+    private void resize(int capacity)
+    {
+        int[] oldKeys = this.keys;
+        XObj[] oldEntries = this.entries;
+        this.keys = new int[capacity];
+        this.entries = new XObj[capacity];
+        // reinserting in slot order from the start of a run keeps the
+        // entries of a key in order
+        int mask = oldEntries.length - 1;
+        int start = 0;
+        while (start < oldEntries.length && oldEntries[(start - 1) & mask] != null) {
+            start++;
+        }
+        for (int i = 0; i < oldEntries.length; i++) {
+            int slot = (start + i) & mask;
+            if (oldEntries[slot] != null) {
+                insert(oldKeys[slot], oldEntries[slot]);
+            }
+        }
+    }
+
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,99 @@
+package lockmgr;
+
+/**
+ * A typed lock key: a row of a table.  A key carries what a lock
+ * request derives from it, computed once: the data item name
+ * <tt>table + row</tt> with its String hash cached.
+ * <p>
+ * Each Lock Manager keeps a dictionary of the keys of recently locked
+ * rows, a bounded number per table.  lock(xid, table, row, mode) finds
+ * the key of its row there instead of building a new one, and a key in
+ * the dictionary has ids: that of its table, that of the row within the
+ * table, and the two in one long.  A key from LockKey.of has no ids;
+ * locking it locks the dictionary's key for its row.
+ * <p>
+ * Keys are equal when they name the same row.  lockAll orders keys by
+ * table name, then row name, the same order in every Lock Manager.
+ */
+public final class LockKey
+{
+    private final String table;
+    private final String row;
+    private final String item;
+    private final int tableId;
+    private final long rowId;
+    private final long id;
+
+    private LockKey(String table, String row) {
+        this(table, row, null, -1, -1);
+    }
+
+    // a key with ids, from a LockKeys dictionary; item is table + row
+    // if known
+    LockKey(String table, String row, String item, int tableId, long rowId) {
+        this.table = table;
+        this.row = row;
+        this.item = (item != null) ? item : table + row;
+        this.item.hashCode();    // cache it in the String
+        this.tableId = tableId;
+        this.rowId = rowId;
+        this.id = (rowId < 0) ? -1 : ((long) tableId << 48) | rowId;
+    }
+
+    /**
+     * Returns a key of row <tt>row</tt> of table <tt>table</tt>,
+     * without ids.
+     */
+    public static LockKey of(String table, String row) {
+        return new LockKey(table, row);
+    }
+
+    public String getTable() {
+        return this.table;
+    }
+
+    public String getRow() {
+        return this.row;
+    }
+
+    // the name of the data item locked, table + row
+    public String getDataItem() {
+        return this.item;
+    }
+
+    // the id of the table in the Lock Manager whose dictionary has the
+    // key, or -1
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    // the id of the row within its table, or -1
+    public long getRowId() {
+        return this.rowId;
+    }
+
+    // the table id in the high 16 bits and the row id in the low 48,
+    // or -1 for a key without ids
+    public long getId() {
+        return this.id;
+    }
+
+    public int hashCode() {
+        return this.item.hashCode();
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof LockKey)) {
+            return false;
+        }
+        LockKey other = (LockKey) o;
+        return this.table.equals(other.table) && this.row.equals(other.row);
+    }
+
+    public String toString() {
+        return this.item;
+    }
+}
@@ -0,0 +1,98 @@
+package lockmgr;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+    The dictionary of row keys of a Lock Manager.  Each table has an id,
+    and a fixed number of slots of row keys, a row going to the slot
+    picked by the hash of its name.  A lock request finds the key of its
+    row there, with the data item name already concatenated and hashed,
+    and with the row id the dictionary gave it; a row not in its slot
+    gets a new key, which takes the slot over.  The dictionary therefore
+    holds at most SLOTS keys per table, however many rows are locked,
+    and costs a lock request one hash of the row name and one read.
+
+    Row ids are never given twice in a table: a key taking a slot over
+    gets the id of the key it replaces plus SLOTS, so the ids of a slot
+    are the slot number plus multiples of SLOTS.  A row put back into
+    the dictionary after losing its slot gets a new id; keys of one row
+    are still equal, by name, so the old and the new lock the same item.
+*/
+
+class LockKeys
+{
+    // row keys per table, a power of 2
+    static final int SLOTS = 4096;
+
+    // the row keys of one table
+    private static class Table
+    {
+        final int id;
+        final AtomicReferenceArray<LockKey> slots = new AtomicReferenceArray<LockKey>(SLOTS);
+
+        Table(int id) {
+            this.id = id;
+        }
+    }
+
+    // table -> its rows
+    private final ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+    private final AtomicInteger nextTable = new AtomicInteger();
+
+    // the key of row of table
+    LockKey key(String table, String row) {
+        return key(table, row, null);
+    }
+
+    // the key in the dictionary equal to key, which is not entered
+    // itself; its data item is reused
+    LockKey key(LockKey key) {
+        return key(key.getTable(), key.getRow(), key.getDataItem());
+    }
+
+    // the key of row of table if it is in the dictionary, or null
+    LockKey get(String table, String row) {
+        Table t = this.tables.get(table);
+        if (t == null) {
+            return null;
+        }
+        LockKey key = t.slots.get(slot(row));
+        return (key != null && key.getRow().equals(row)) ? key : null;
+    }
+
+    // the slot of row
+    static int slot(String row) {
+        int h = row.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (SLOTS - 1);
+    }
+
+    private LockKey key(String table, String row, String item) {
+        Table t = table(table);
+        int slot = slot(row);
+        while (true) {
+            LockKey key = t.slots.get(slot);
+            if (key != null && key.getRow().equals(row)) {
+                return key;
+            }
+            long rowId = (key == null) ? slot : key.getRowId() + SLOTS;
+            LockKey fresh = new LockKey(table, row, item, t.id, rowId);
+            if (t.slots.compareAndSet(slot, key, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private Table table(String table) {
+        Table t = this.tables.get(table);
+        if (t == null) {
+            t = new Table(this.nextTable.getAndIncrement());
+            Table old = this.tables.putIfAbsent(table, t);
+            if (old != null) {
+                t = old;
+            }
+        }
+        return t;
+    }
+}
@@ -1,33 +1,64 @@
 package lockmgr;
 
-import java.util.BitSet;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
- * Implements a Lock Manager.  Each Resource Manager creates one
- * instance of this class, to which all lock requests are directed.
+ * Interface of a Lock Manager.  Each Resource Manager creates one
+ * instance, to which all lock requests are directed; instances do not
+ * share locks.  Use LockManagerFactory to create the engine selected
+ * by -DlockManager.
  */
-public class LockManager
+public interface LockManager
 {
-    /* Lock request type. */
+    /* Lock request type.  READ and WRITE are also the S and X modes of
+       a table; IS, IX and SIX are the intention modes, taken on a
+       table before locking its rows (see lock(int, String, String, int)). */
     public static final int READ = 0;
     public static final int WRITE = 1;
+    public static final int IS = 2;
+    public static final int IX = 3;
+    public static final int SIX = 4;
+    /* Update lock: a READ lock that only one transaction may hold at a
+       time, taken by a transaction that reads an item in order to
+       write it.  Converts to WRITE without deadlocking against another
+       updater. */
+    public static final int UPDATE = 5;
     
-    /* A lock request is considered deadlocked after 10 sec. */
-    private static int DEADLOCK_TIMEOUT = 10000;
+    /* Deadlock handling: look for waits-for cycles whenever a request
+       has to wait (the timeout still applies), rely on the timeout
+       alone, or prevent deadlocks by transaction age, smaller xids
+       being older.  Under wound-wait an older requester aborts the
+       younger transactions in its way and a younger one waits; under
+       wait-die an older requester waits and a younger one aborts.
+       Set with -Ddeadlock=detect|timeout|woundWait|waitDie. */
+    public static final int DETECT = 0;
+    public static final int TIMEOUT = 1;
+    public static final int WOUND_WAIT = 2;
+    public static final int WAIT_DIE = 3;
 
-    private static int TABLE_SIZE = 2039;
-    private static TPHashTable lockTable = new TPHashTable(TABLE_SIZE);
-    private static TPHashTable stampTable = new TPHashTable(TABLE_SIZE);
-    private static TPHashTable waitTable = new TPHashTable(TABLE_SIZE);
+    /* Which transaction on a waits-for cycle is aborted.  Set with
+       -DdeadlockVictim=youngest|fewestLocks. */
+    public static final int VICTIM_YOUNGEST = 0;
+    public static final int VICTIM_FEWEST_LOCKS = 1;
 
-    /**
-     * Each Resource Manager needs to construct one instance of the
-     * LockManager.
-     */
-    public LockManager() {
-        super();
-    }
+    /* The order in which waiting requests are granted.  GRANT_FIFO
+       grants in arrival order.  GRANT_READERS lets readers (READ and
+       IS) overtake waiting writers, GRANT_WRITERS lets writers
+       overtake waiting readers, and GRANT_BATCH grants every waiting
+       request that is compatible with the holders at once.  Under all
+       of them a waiting request is overtaken at most the starvation
+       bound times; LockStats counts the overtakes.  The queue and
+       striped engines hand a lock over to its waiter, so a woken
+       waiter never loses it again; the default engine wakes waiters
+       to compete for the lock and ignores the policy.
+       Set with -DlockGrant=fifo|readers|writers|batch and
+       -DlockStarvation=N, or per Resource Manager with
+       -DlockGrant.<rmiName>. */
+    public static final int GRANT_FIFO = 0;
+    public static final int GRANT_READERS = 1;
+    public static final int GRANT_WRITERS = 2;
+    public static final int GRANT_BATCH = 3;
 
     /**
      * Locks the data item identified by <tt>strData</tt> in mode
@@ -39,88 +70,183 @@ public class LockManager
      * 
      * @param xid Transaction Identifier, should be non-negative.
      * @param strData identifies the data element to be locked; should be non-null.
-     * @param lockType one of LockManager.READ or LockManager.WRITE
+     * @param lockType one of LockManager.READ, WRITE, IS, IX, SIX or UPDATE
      * @return true if operation succeeded; false if not (due to invalid parameters).
      *
-     * @throws DeadlockException if deadlock is detected (using a timeout)
+     * @throws DeadlockException if deadlock is detected (using the
+     * waits-for graph or a timeout), or the transaction has to abort
+     * under wound-wait or wait-die
      */
     public boolean lock(int xid, String strData, int lockType)
-	throws DeadlockException 
-    {
-    
-        // if any parameter is invalid, then return false
-        if (xid < 0) { 
-            return false;
-        }
-        
-        if (strData == null) {
-            return false;
-        }
-        
-        if ((lockType != TrxnObj.READ) && (lockType != TrxnObj.WRITE)) { 
-            return false;
-        }
-        
-        // two objects in lock table for easy lookup.
-        TrxnObj trxnObj = new TrxnObj(xid, strData, lockType);
-        DataObj dataObj = new DataObj(xid, strData, lockType);
-        
-        // return true when there is no lock conflict or throw a deadlock exception.
-        try {
-            boolean bConflict = true;
-            BitSet bConvert = new BitSet(1);
+        throws DeadlockException;
+
+    /**
+     * Locks row <tt>row</tt> of table <tt>table</tt> in mode
+     * <tt>lockType</tt> on behalf of the transaction with id
+     * <tt>xid</tt>.  The table is first locked in the matching
+     * intention mode, IS for READ and IX for WRITE or UPDATE, unless the
+     * transaction already holds a table lock covering the row.  Once
+     * the transaction holds more locks than the escalation threshold,
+     * the whole table is locked instead: in S mode if it has only read
+     * the table so far, in X mode otherwise.
+     * <p>
+     * A bulk job can lock a whole table up front by calling
+     * <tt>lock(xid, table, mode)</tt> directly.  The row is locked as
+     * data item <tt>table + row</tt>, so plain and hierarchical locks
+     * on the same row still conflict.
+     *
+     * @param xid Transaction Identifier, should be non-negative.
+     * @param table identifies the table; should be non-null.
+     * @param row identifies the row within the table; should be non-null.
+     * @param lockType one of LockManager.READ, WRITE or UPDATE
+     * @return true if operation succeeded; false if not (due to invalid parameters).
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lock(int xid, String table, String row, int lockType)
+        throws DeadlockException;
+
+    /**
+     * Locks a row like lock(int, String, String, int), the table and
+     * row being given by a LockKey, whose data item name and hash are
+     * computed once.  Both find the key of the row in the Lock
+     * Manager's dictionary of recently locked rows, and make one only
+     * for a row not in it.
+     *
+     * @param xid Transaction Identifier, should be non-negative.
+     * @param row the key of the row, from LockKey.of(table, row)
+     * @param lockType one of LockManager.READ, WRITE or UPDATE
+     * @return true if operation succeeded; false if not (due to invalid parameters).
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lock(int xid, LockKey row, int lockType)
+        throws DeadlockException;
+
+    /**
+     * Locks a row like lock(int, LockKey, int), waiting at most
+     * <tt>timeoutMillis</tt> in total as lock(int, String, String, int, long).
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lock(int xid, LockKey row, int lockType, long timeoutMillis)
+        throws DeadlockException;
+
+    /**
+     * Locks a set of rows, as lock(int, LockKey, int) each, in a
+     * canonical order: by table name, then row name.  Transactions that
+     * take all their row locks through lockAll therefore never wait for
+     * each other in a cycle, however their sets overlap.  Duplicate
+     * keys are locked once.  Stops at the first lock that is not
+     * granted, keeping those already taken.
+     *
+     * @param xid Transaction Identifier, should be non-negative.
+     * @param rows the keys of the rows, from LockKey.of(table, row)
+     * @param lockType one of LockManager.READ, WRITE or UPDATE
+     * @return true if every lock was granted; false if not (due to
+     * invalid parameters).
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lockAll(int xid, LockKey[] rows, int lockType)
+        throws DeadlockException;
+
+    /**
+     * Locks a set of rows like lock(int, LockKey[], int), waiting at
+     * most <tt>timeoutMillis</tt> for all of them together.
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lockAll(int xid, LockKey[] rows, int lockType, long timeoutMillis)
+        throws DeadlockException;
+
+    /**
+     * Locks the data item identified by <tt>strData</tt> like
+     * lock(int, String, int), but waits at most <tt>timeoutMillis</tt>
+     * for a conflicting lock to be released.  A request still waiting
+     * when the time is up is withdrawn, and the transaction keeps the
+     * locks it already holds.  A negative timeout waits as long as
+     * lock(int, String, int); the deadlock timeout bounds every wait.
+     *
+     * @param xid Transaction Identifier, should be non-negative.
+     * @param strData identifies the data element to be locked; should be non-null.
+     * @param lockType one of LockManager.READ, WRITE, IS, IX, SIX or UPDATE
+     * @param timeoutMillis the longest time to wait, 0 not to wait at all
+     * @return true if the lock was granted; false if it was not granted
+     * in time, or the parameters are invalid.
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lock(int xid, String strData, int lockType, long timeoutMillis)
+        throws DeadlockException;
 
-            while (bConflict) {
-                synchronized (this.lockTable) {
-                    // check if this lock request conflicts with existing locks
-                    bConflict = lockConflict(dataObj, bConvert);
-                    if (!bConflict) {
-                        // no lock conflict
-                        synchronized (this.stampTable) {
-                            // remove the timestamp (if any) for this lock request
-                            TimeObj timeObj = new TimeObj(xid);
-                            this.stampTable.remove(timeObj);
-                        }
-                        synchronized (this.waitTable) {
-                            // remove the entry for this transaction from waitTable (if it
-                            // is there) as it has been granted its lock request
-                            WaitObj waitObj = new WaitObj(xid, strData, lockType);
-                            this.waitTable.remove(waitObj);
-                        }
-                         
-                        if (bConvert.get(0) == true) {
-                            // lock conversion 
-                            // *** ADD CODE HERE *** to carry out the lock conversion in the
-                            // lock table
-			    System.out.print("Converting lock...");
-			    convertLockTableObj(trxnObj);
-			    convertLockTableObj(dataObj);
-			    System.out.println("done");
-			    
-                        } else {
-                            // a lock request that is not lock conversion
-                            this.lockTable.add(trxnObj);
-                            this.lockTable.add(dataObj);
-                        }
-                    }
-                }
-                if (bConflict) {
-                    // lock conflict exists, wait
-                    waitLock(dataObj);
-                }
-            }
-        } 
-        catch (DeadlockException deadlock) {
-            throw deadlock;
-        }
-        catch (RedundantLockRequestException redundantlockrequest) {
-              // just ignore the redundant lock request
-            return true;
-        } 
+    /**
+     * Locks the data item identified by <tt>strData</tt> only if that
+     * can be done without waiting; same as a timeout of 0.
+     *
+     * @return true if the lock was granted; false if it is held in a
+     * conflicting mode, or the parameters are invalid.
+     *
+     * @throws DeadlockException if the transaction has been chosen to
+     * abort while it was waiting for another lock
+     */
+    public boolean tryLock(int xid, String strData, int lockType)
+        throws DeadlockException;
+
+    /**
+     * Locks a row like lock(int, String, String, int), waiting at most
+     * <tt>timeoutMillis</tt> in total for the table and row locks.  If
+     * the row lock is not granted in time the intention lock already
+     * taken on the table is kept.
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lock(int xid, String table, String row, int lockType, long timeoutMillis)
+        throws DeadlockException;
 
-        return true;
-    }
+    /**
+     * Locks the rows of table <tt>table</tt> whose keys lie between
+     * <tt>lo</tt> and <tt>hi</tt> inclusive, in READ mode, on behalf of
+     * the transaction with id <tt>xid</tt>, so that a scan of them is
+     * serializable: until the transaction ends, no other transaction
+     * can write, insert or delete a row in the range.  Rows already
+     * being written in the range are waited for; their row locks, and
+     * the intention lock on the table, are taken as by
+     * lock(int, String, String, int).  Writers of a range locked row
+     * must lock it with lock(int, String, String, int) to be held
+     * back.  Until the transactions that were writing the table when
+     * it was first range locked have finished, a range lock locks the
+     * whole table in S mode instead.
+     *
+     * @param xid Transaction Identifier, should be non-negative.
+     * @param table identifies the table; should be non-null.
+     * @param lo the lowest row key of the range; should be non-null.
+     * @param hi the highest row key of the range, not below lo.
+     * @return true if operation succeeded; false if not (due to invalid parameters).
+     *
+     * @throws DeadlockException as for lock(int, String, int)
+     */
+    public boolean lockRange(int xid, String table, String lo, String hi)
+        throws DeadlockException;
 
+    /**
+     * Requests a lock on the data item identified by <tt>strData</tt>
+     * without blocking the calling thread.  A request that has to wait
+     * is parked as a future instead of a sleeping thread; it is
+     * completed when the lock is handed over, so a blocked request
+     * costs no thread of its own.  A transaction should have at most
+     * one request waiting at a time, and unlockAll withdraws it.
+     *
+     * @param xid Transaction Identifier, should be non-negative.
+     * @param strData identifies the data element to be locked; should be non-null.
+     * @param lockType one of LockManager.READ, WRITE, IS, IX, SIX or UPDATE
+     * @param timeoutMillis as for lock(int, String, int, long)
+     * @return a future completed with true once the lock is granted,
+     * with false if it was not granted in time or the parameters are
+     * invalid, or exceptionally with DeadlockException.  Dependent
+     * actions run on the wait executor.
+     */
+    public CompletableFuture<Boolean> lockAsync(int xid, String strData, int lockType, long timeoutMillis);
 
     /**
      * Unlocks all data items locked on behalf of the transaction with
@@ -130,252 +256,39 @@ public class LockManager
      * 
      * @return true if the operation succeeded, false if not.
      */ 
-    public boolean unlockAll(int xid) {
-
-        // if any parameter is invalid, then return false
-        if (xid < 0) {
-            return false;
-        }
+    public boolean unlockAll(int xid);
 
-        TrxnObj trxnQueryObj = new TrxnObj(xid, "", -1);  // Only used in elements() call below.
-        synchronized (this.lockTable) {
-            Vector vect = this.lockTable.elements(trxnQueryObj);
+    public void setDeadlockMode(int deadlockMode);
 
-            TrxnObj trxnObj;
-            Vector waitVector;
-            WaitObj waitObj;
-            int size = vect.size();
-                                                
-            for (int i = (size - 1); i >= 0; i--) {
-                
-                trxnObj = (TrxnObj) vect.elementAt(i);
-                this.lockTable.remove(trxnObj);
+    public void setVictimRule(int victimRule);
 
-                DataObj dataObj = new DataObj(trxnObj.getXId(), trxnObj.getDataName(), trxnObj.getLockType());
-                this.lockTable.remove(dataObj);
-                                        
-                // check if there are any waiting transactions. 
-                synchronized (this.waitTable) {
-                    // get all the transactions waiting on this dataObj
-                    waitVector = this.waitTable.elements(dataObj);
-                    int waitSize = waitVector.size();
-                    for (int j = 0; j < waitSize; j++) {
-                        waitObj = (WaitObj) waitVector.elementAt(j);
-                        if (waitObj.getLockType() == LockManager.WRITE) {
-                            if (j == 0) {
-                                // get all other transactions which have locks on the
-                                // data item just unlocked. 
-                                Vector vect1 = this.lockTable.elements(dataObj);
-                                
-                                // remove interrupted thread from waitTable only if no
-                                // other transaction has locked this data item
-                                if (vect1.size () == 0) {
-                                    this.waitTable.remove(waitObj);     
-                                    
-                                    try {
-                                        synchronized (waitObj.getThread()) {
-                                            waitObj.getThread().notify();
-                                        }
-                                    }
-                                    catch (Exception e)    {
-                                        System.out.println("Exception on unlock\n" + e.getMessage());
-                                    }        
-                                }
-                                else {
-                                    // some other transaction still has a lock on
-                                    // the data item just unlocked. So, WRITE lock
-                                    // cannot be granted.
-                                    break;
-                                }
-                            }
+    public void setEscalationThreshold(int escalationThreshold);
 
-                            // stop granting READ locks as soon as you find a WRITE lock
-                            // request in the queue of requests
-                            break;
-                        } else if (waitObj.getLockType() == LockManager.READ) {
-                            // remove interrupted thread from waitTable.
-                            this.waitTable.remove(waitObj);    
-                            
-                            try {
-                                synchronized (waitObj.getThread()) {
-                                    waitObj.getThread().notify();
-                                }
-                            }
-                            catch (Exception e) {
-                                System.out.println("Exception e\n" + e.getMessage());
-                            }
-                        }
-                    }
-                } 
-            }
-        } 
+    public void setGrantPolicy(int grantPolicy);
 
-        return true;
-    }
-
-    
-    // returns true if the lock request on dataObj conflicts with
-    // already existing locks. If the lock request is a redundant one
-    // (for eg: if a transaction holds a read lock on certain data
-    // item and again requests for a read lock), then this is
-    // ignored. This is done by throwing RedundantLockRequestException
-    // which is handled appropriately by the caller. If the lock
-    // request is a conversion from READ lock to WRITE lock, then
-    // bitset is set.
-    private boolean lockConflict(DataObj dataObj, BitSet bitset) 
-	throws DeadlockException, RedundantLockRequestException 
-    {
-        Vector vect = this.lockTable.elements(dataObj);
-        DataObj dataObj2;
-        int size = vect.size();
-        
-        // as soon as a lock that conflicts with the current lock
-        // request is found, return true
-        for (int i = 0; i < size; i++) {
-            dataObj2 = (DataObj) vect.elementAt(i);
-            if (dataObj.getXId() == dataObj2.getXId()) {    
-                // the transaction already has a lock on this data
-                // item which means that it is either relocking it or
-                // is converting the lock
-                if (dataObj.getLockType() == DataObj.READ) {    
-                    // since transaction already has a lock (may be
-                    // READ, may be WRITE. we don't care) on this data
-                    // item and it is requesting a READ lock, this
-                    // lock request is redundant.
-                    throw new RedundantLockRequestException(dataObj.getXId(), 
-							    "Redundant READ lock request");
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction already has a lock and is requesting a WRITE lock
-                    // now there are two cases to analyze here
-                    // (1) transaction already had a READ lock
-                    // (2) transaction already had a WRITE lock
-                    // Seeing the comments at the top of this function might be helpful
-                    // *** ADD CODE HERE *** to take care of both these cases
-		    if (dataObj2.getLockType() == DataObj.WRITE) {
-			// since the transaction already has a write lock on this
-			// data item, this locm request is redundant
-			throw new RedundantLockRequestException(dataObj.getXId(),
-								"Redundant WRITE lock request");
-		    }
-		    else {
-			// the transaction has a READ lock and has requested a WRITE lock,
-			// so this is a lock conversion request
-			System.out.println("Want WRITE, have READ, requesting lock upgrade");
-			bitset.set(0);
-			// we can't just return false here, because some other
-			// transaction may also have a READ lock. So we must
-			// continue iterating through the chain of locks.
-		    }
-                }
-            }
-            else {
-                if (dataObj.getLockType() == DataObj.READ) {
-                    if (dataObj2.getLockType() == DataObj.WRITE) {
-                        // transaction is requesting a READ lock and some other transaction
-                        // already has a WRITE lock on it ==> conflict
-                        System.out.println("Want READ, someone has WRITE");
-                        return true;
-                    }
-                    else {
-                        // do nothing 
-                    }
-                } else if (dataObj.getLockType() == DataObj.WRITE) {
-                    // transaction is requesting a WRITE lock and some other transaction has either
-                    // a READ or a WRITE lock on it ==> conflict
-                    System.out.println("Want WRITE, someone has READ or WRITE");
-                    return true;
-                }
-            }
-        }
-        
-        // no conflicting lock found, return false
-        return false;
-
-    }
-    
-    private void waitLock(DataObj dataObj) throws DeadlockException {
-        // Check timestamp or add a new one.
-        // Will always add new timestamp for each new lock request since
-        // the timeObj is deleted each time the transaction succeeds in
-        // getting a lock (see Lock() )
-        
-        TimeObj timeObj = new TimeObj(dataObj.getXId());
-        TimeObj timestamp = null;
-        long timeBlocked = 0;
-        Thread thisThread = Thread.currentThread();
-        WaitObj waitObj = new WaitObj(dataObj.getXId(), dataObj.getDataName(), dataObj.getLockType(), thisThread);
+    /**
+     * Sets how many times a waiting request may be overtaken under the
+     * grant policy before nothing may overtake it any more.
+     */
+    public void setStarvationBound(int starvationBound);
 
-        synchronized (this.stampTable) {
-            Vector vect = this.stampTable.elements(timeObj);
-            if (vect.size() == 0) {
-                // add the time stamp for this lock request to stampTable
-                this.stampTable.add(timeObj);
-                timestamp = timeObj;
-            } else if (vect.size() == 1) {
-                // lock operation could have timed out; check for deadlock
-                TimeObj prevStamp = (TimeObj)vect.firstElement();
-                timestamp = prevStamp;
-                timeBlocked = timeObj.getTime() - prevStamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater than the timeout period
-                    cleanupDeadlock(prevStamp, waitObj);
-                }
-            } else {
-                // should never get here. shouldn't be more than one time stamp per transaction
-                // because a transaction at a given time the transaction can be blocked on just one lock
-                // request. 
-            }
-        } 
-        
-        // suspend thread and wait until notified...
+    /**
+     * Sets the executor that completes the futures of lockAsync and,
+     * for engines that can only wait by blocking, runs the waits.  The
+     * default uses a virtual thread per task on JVMs that have them,
+     * and a pool of daemon threads otherwise.
+     */
+    public void setWaitExecutor(Executor waitExecutor);
 
-        synchronized (this.waitTable) {
-            if (! this.waitTable.contains(waitObj)) {
-                // register this transaction in the waitTable if it is not already there 
-                this.waitTable.add(waitObj);
-            }
-            else {
-                // else lock manager already knows the transaction is waiting.
-            }
-        }
-        
-        synchronized (thisThread) {
-            try {
-                thisThread.wait(LockManager.DEADLOCK_TIMEOUT - timeBlocked);
-                TimeObj currTime = new TimeObj(dataObj.getXId());
-                timeBlocked = currTime.getTime() - timestamp.getTime();
-                if (timeBlocked >= LockManager.DEADLOCK_TIMEOUT) {
-                    // the transaction has been waiting for a period greater than the timeout period
-                    cleanupDeadlock(timestamp, waitObj);
-                }
-                else {
-                    return;
-                }
-            }
-            catch (InterruptedException e) {
-                System.out.println("Thread interrupted?");
-            }
-        }
-    }
-    
-    // cleanupDeadlock cleans up stampTable and waitTable, and throws
-    // DeadlockException
-    private void cleanupDeadlock(TimeObj tmObj, WaitObj waitObj)
-        throws DeadlockException
-    {
-        synchronized (this.stampTable) {
-            synchronized (this.waitTable) {
-                this.stampTable.remove(tmObj);
-                this.waitTable.remove(waitObj);
-            }
-        }
-        throw new DeadlockException(waitObj.getXId(), "Sleep timeout...deadlock.");
-    }
+    /**
+     * Returns the lock statistics of this Lock Manager, counted per
+     * data item.
+     */
+    public LockStats getStats();
 
-    private void convertLockTableObj(TrxnObj trxnObj)
-    {
-	trxnObj.setLockType(TrxnObj.READ);
-	TrxnObj trxnObj2 = (TrxnObj) this.lockTable.get(trxnObj);
-	trxnObj2.setLockType(TrxnObj.WRITE);
-    }
+    /**
+     * Returns the lock request trace of this Lock Manager, which records
+     * the requests of sampled transactions.
+     */
+    public LockTrace getTrace();
 }
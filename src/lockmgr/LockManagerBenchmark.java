@@ -0,0 +1,276 @@
+package lockmgr;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Throughput and latency benchmark of the Lock Manager engines.  Each
+    thread runs transactions that lock a few data items, drawn from
+    <tt>keys</tt> items with a Zipfian skew so that a few flights are
+    hot, and then call unlockAll.  A lock is a WRITE with probability
+    <tt>writes</tt>, and a READ lock is upgraded to WRITE with
+    probability <tt>upgrades</tt>.  A transaction aborted by a deadlock
+    is counted and not retried.  After a warm-up run, the benchmark
+    reports transactions per second and the 50th, 99th and 99.9th
+    percentile latency of a whole transaction.
+
+    Usage: java lockmgr.LockManagerBenchmark [name=value...]
+    where each value may be a comma separated list, every combination
+    of which is run:
+        engine=default,queue,striped   keys=1000      threads=1,4,16
+        writes=0.2    skew=0.99 (0 is uniform)    upgrades=0.1
+        locks=4 (per transaction)    seconds=3    warmup=1
+*/
+
+public class LockManagerBenchmark
+{
+    private static final String[] NAMES = {
+        "engine", "keys", "threads", "writes", "skew", "upgrades", "locks", "seconds", "warmup"
+    };
+    private static final String[] DEFAULTS = {
+        "default,queue,striped", "1000", "1,4,16", "0.2", "0.99", "0.1", "4", "3", "1"
+    };
+
+    public static void main(String[] args) throws Exception {
+        String[][] values = new String[NAMES.length][];
+        for (int i = 0; i < NAMES.length; i++) {
+            values[i] = DEFAULTS[i].split(",");
+        }
+        for (int i = 0; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            int name = (eq < 0) ? -1 : indexOf(args[i].substring(0, eq));
+            if (name < 0) {
+                System.err.println("Unknown parameter " + args[i]);
+                System.exit(1);
+            }
+            values[name] = args[i].substring(eq + 1).split(",");
+        }
+
+        // every combination, the last parameter varying fastest
+        int[] choice = new int[NAMES.length];
+        while (true) {
+            String[] run = new String[NAMES.length];
+            for (int i = 0; i < NAMES.length; i++) {
+                run[i] = values[i][choice[i]];
+            }
+            run(run);
+            int i = NAMES.length - 1;
+            while (i >= 0 && ++choice[i] == values[i].length) {
+                choice[i] = 0;
+                i--;
+            }
+            if (i < 0) {
+                break;
+            }
+        }
+    }
+
+    private static int indexOf(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void run(String[] run) throws Exception {
+        String engine = run[0];
+        int keys = Integer.parseInt(run[1]);
+        int threads = Integer.parseInt(run[2]);
+        double writes = Double.parseDouble(run[3]);
+        double skew = Double.parseDouble(run[4]);
+        double upgrades = Double.parseDouble(run[5]);
+        int locks = Integer.parseInt(run[6]);
+        double seconds = Double.parseDouble(run[7]);
+        double warmup = Double.parseDouble(run[8]);
+
+        String[] items = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            items[i] = "FLIGHTS" + i;
+        }
+        double[] cdf = zipf(keys, skew);
+        LockManager lm = LockManagerFactory.newLockManager(engine);
+        AtomicInteger xids = new AtomicInteger(0);
+
+        measure(lm, xids, items, cdf, threads, writes, upgrades, locks, warmup);
+        long start = System.nanoTime();
+        Worker[] workers = measure(lm, xids, items, cdf, threads, writes, upgrades, locks, seconds);
+        // a transaction still waiting at the deadline runs over it
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        Histogram latencies = new Histogram();
+        long aborts = 0;
+        for (int i = 0; i < workers.length; i++) {
+            latencies.add(workers[i].latencies);
+            aborts += workers[i].aborts;
+        }
+        StringBuffer line = new StringBuffer();
+        for (int i = 0; i < NAMES.length - 2; i++) {
+            line.append(NAMES[i]).append('=').append(run[i]).append(' ');
+        }
+        line.append(" txn/s=").append(Math.round(latencies.count() / elapsed));
+        line.append(" p50=").append(latencies.percentile(0.50));
+        line.append(" p99=").append(latencies.percentile(0.99));
+        line.append(" p99.9=").append(latencies.percentile(0.999));
+        line.append(" us  aborts=").append(aborts);
+        System.out.println(line);
+    }
+
+    // runs the workers for the given time and returns them
+    private static Worker[] measure(LockManager lm, AtomicInteger xids, String[] items, double[] cdf,
+                                    int threads, double writes, double upgrades, int locks,
+                                    double seconds) throws InterruptedException {
+        Worker[] workers = new Worker[threads];
+        long stop = System.nanoTime() + (long) (seconds * 1e9);
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(lm, xids, items, cdf, writes, upgrades, locks, stop);
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+        }
+        return workers;
+    }
+
+    // the cumulative distribution of a Zipfian choice among n items
+    // with exponent skew; 0 gives the uniform distribution
+    private static double[] zipf(int n, double skew) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    private static class Worker extends Thread
+    {
+        private LockManager lm;
+        private AtomicInteger xids;
+        private String[] items;
+        private double[] cdf;
+        private double writes;
+        private double upgrades;
+        private int locks;
+        private long stop;
+        private Random random = new Random();
+        Histogram latencies = new Histogram();
+        long aborts = 0;
+
+        Worker(LockManager lm, AtomicInteger xids, String[] items, double[] cdf,
+               double writes, double upgrades, int locks, long stop) {
+            this.lm = lm;
+            this.xids = xids;
+            this.items = items;
+            this.cdf = cdf;
+            this.writes = writes;
+            this.upgrades = upgrades;
+            this.locks = locks;
+            this.stop = stop;
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (System.nanoTime() < this.stop) {
+                int xid = this.xids.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    for (int i = 0; i < this.locks; i++) {
+                        String item = this.items[pick()];
+                        if (this.random.nextDouble() < this.writes) {
+                            this.lm.lock(xid, item, LockManager.WRITE);
+                        } else {
+                            this.lm.lock(xid, item, LockManager.READ);
+                            if (this.random.nextDouble() < this.upgrades) {
+                                this.lm.lock(xid, item, LockManager.WRITE);
+                            }
+                        }
+                    }
+                }
+                catch (DeadlockException e) {
+                    this.aborts++;
+                }
+                this.lm.unlockAll(xid);
+                this.latencies.record(System.nanoTime() - start);
+            }
+        }
+
+        private int pick() {
+            double u = this.random.nextDouble();
+            int lo = 0;
+            int hi = this.cdf.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (this.cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    // Latencies in microseconds, counted in buckets that are 1/16 of a
+    // power of two wide, so that percentiles are within about 6% and
+    // recording allocates nothing.
+    private static class Histogram
+    {
+        private static final int SUB = 16;
+        private long[] counts = new long[64 * SUB];
+        private long count = 0;
+
+        void record(long nanos) {
+            long micros = Math.max(nanos / 1000, 0);
+            this.counts[bucket(micros)]++;
+            this.count++;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < this.counts.length; i++) {
+                this.counts[i] += other.counts[i];
+            }
+            this.count += other.count;
+        }
+
+        long count() {
+            return this.count;
+        }
+
+        // the upper bound of the bucket holding the given fraction
+        long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * this.count);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if (seen >= rank && seen > 0) {
+                    return upper(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long micros) {
+            if (micros < SUB) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);    // at least 4
+            int sub = (int) (micros >>> (exponent - 4)) - SUB;
+            return (exponent - 3) * SUB + sub;
+        }
+
+        private static long upper(int bucket) {
+            if (bucket < SUB) {
+                return bucket;
+            }
+            int exponent = bucket / SUB + 3;
+            long sub = bucket % SUB + SUB;
+            return ((sub + 1) << (exponent - 4)) - 1;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package lockmgr;
+
+/**
+ * Creates Lock Managers.  By default, or with -DlockManager=queue, the
+ * engine with per-item request queues, in which a request waiting
+ * through lockAsync holds no thread; -DlockManager=striped selects the
+ * one with striped queues, and -DlockManager=default the original lock
+ * table, which waits for lockAsync on a thread of the wait executor.
+ */
+public class LockManagerFactory
+{
+    private LockManagerFactory() {
+    }
+
+    public static LockManager newLockManager() {
+        return newLockManager(System.getProperty("lockManager"));
+    }
+
+    public static LockManager newLockManager(String engine) {
+        if ("default".equals(engine)) {
+            return new DefaultLockManager();
+        }
+        if ("striped".equals(engine)) {
+            return new StripedLockManager();
+        }
+        return new QueueLockManager();
+    }
+
+    /**
+     * Returns the grant policy named <tt>name</tt>: fifo, readers,
+     * writers or batch.  Anything else gives GRANT_FIFO.
+     */
+    public static int grantPolicy(String name) {
+        if ("readers".equals(name)) {
+            return LockManager.GRANT_READERS;
+        } else if ("writers".equals(name)) {
+            return LockManager.GRANT_WRITERS;
+        } else if ("batch".equals(name)) {
+            return LockManager.GRANT_BATCH;
+        }
+        return LockManager.GRANT_FIFO;
+    }
+}
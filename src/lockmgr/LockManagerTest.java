@@ -1,12 +1,29 @@
 package lockmgr;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 class LockManagerTest {
     
-    static LockManager lm = new LockManager();
+    static LockManager lm = new DefaultLockManager();
+
+    static final String[] ENGINES = { "default", "queue", "striped" };
+
+    static int failures = 0;
 
     public static void main (String[] args) {
+	for (int i = 0; i < ENGINES.length; i++) {
+	    testEngine(ENGINES[i]);
+	    testWaitsFor(ENGINES[i]);
+	    testWoundWait(ENGINES[i]);
+	    testWaitDie(ENGINES[i]);
+	    testIntention(ENGINES[i]);
+	    testEscalation(ENGINES[i]);
+	    testKeys(ENGINES[i]);
+	    testRange(ENGINES[i]);
+	}
+	testFactoryDefault();
+	System.out.println(failures + " checks failed");
 	test1();
 	//test2();
     }
@@ -21,6 +38,434 @@ class LockManagerTest {
 	t2.start();
     }
 
+    // shared and exclusive locks, conversion, and hand-over to a
+    // queued request on release
+    static void testEngine(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.DETECT);
+	try {
+	    check(engine, "shared read", lm.lock(1, "a", LockManager.READ)
+		  && lm.tryLock(2, "a", LockManager.READ));
+	    check(engine, "write conflicts with read",
+		  !lm.tryLock(3, "a", LockManager.WRITE));
+	    Request w3 = new Request(lm, 3, "a", LockManager.WRITE);
+	    check(engine, "writer queued", w3.waiting());
+	    lm.unlockAll(1);
+	    check(engine, "writer queued behind last reader", w3.waiting());
+	    lm.unlockAll(2);
+	    check(engine, "writer granted on release", w3.outcome() == Request.GRANTED);
+	    check(engine, "read conflicts with write",
+		  !lm.tryLock(4, "a", LockManager.READ));
+	    CompletableFuture<Boolean> r4 = lm.lockAsync(4, "a", LockManager.READ, -1);
+	    check(engine, "asynchronous reader queued", !r4.isDone());
+	    lm.unlockAll(3);
+	    check(engine, "asynchronous reader granted on release", granted(r4));
+	    lm.unlockAll(4);
+
+	    lm.lock(5, "b", LockManager.READ);
+	    check(engine, "sole reader converts to write",
+		  lm.tryLock(5, "b", LockManager.WRITE)
+		  && !lm.tryLock(6, "b", LockManager.READ));
+	    lm.lock(7, "c", LockManager.READ);
+	    lm.lock(8, "c", LockManager.READ);
+	    Request u7 = new Request(lm, 7, "c", LockManager.WRITE);
+	    check(engine, "conversion waits for other reader", u7.waiting());
+	    lm.unlockAll(8);
+	    check(engine, "conversion granted on release", u7.outcome() == Request.GRANTED);
+	}
+	catch (DeadlockException de) {
+	    check(engine, "no deadlock", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 8; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // a waits-for cycle aborts the youngest transaction on it, or the
+    // one holding the fewest locks
+    static void testWaitsFor(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.DETECT);
+	try {
+	    lm.lock(1, "a", LockManager.WRITE);
+	    lm.lock(2, "b", LockManager.WRITE);
+	    Request w1 = new Request(lm, 1, "b", LockManager.WRITE);
+	    check(engine, "no cycle, waits", w1.waiting());
+	    Request w2 = new Request(lm, 2, "a", LockManager.WRITE);
+	    check(engine, "cycle aborts youngest",
+		  w2.outcome() == Request.DEADLOCK && w1.waiting());
+	    lm.unlockAll(2);
+	    check(engine, "survivor granted", w1.outcome() == Request.GRANTED);
+	    lm.unlockAll(1);
+
+	    lm.setVictimRule(LockManager.VICTIM_FEWEST_LOCKS);
+	    lm.lock(3, "a", LockManager.WRITE);
+	    lm.lock(4, "b", LockManager.WRITE);
+	    lm.lock(4, "c", LockManager.WRITE);
+	    lm.lock(4, "d", LockManager.WRITE);
+	    Request w3 = new Request(lm, 3, "b", LockManager.WRITE);
+	    check(engine, "no cycle, waits", w3.waiting());
+	    Request w4 = new Request(lm, 4, "a", LockManager.WRITE);
+	    check(engine, "cycle aborts fewest locks",
+		  w3.outcome() == Request.DEADLOCK && w4.waiting());
+	    lm.unlockAll(3);
+	    check(engine, "survivor granted", w4.outcome() == Request.GRANTED);
+	}
+	catch (DeadlockException de) {
+	    check(engine, "no deadlock off the cycle", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 4; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // an older requester wounds a younger holder, a younger one waits
+    static void testWoundWait(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.WOUND_WAIT);
+	try {
+	    lm.lock(2, "a", LockManager.WRITE);
+	    Request w1 = new Request(lm, 1, "a", LockManager.WRITE);
+	    check(engine, "older waits for wounded", w1.waiting());
+	    boolean wounded = false;
+	    try {
+		lm.tryLock(2, "z", LockManager.READ);
+	    }
+	    catch (DeadlockException de) {
+		wounded = true;
+	    }
+	    check(engine, "younger holder wounded", wounded);
+	    lm.unlockAll(2);
+	    check(engine, "older granted", w1.outcome() == Request.GRANTED);
+
+	    lm.lock(3, "b", LockManager.WRITE);
+	    lm.lock(4, "c", LockManager.WRITE);
+	    Request w4 = new Request(lm, 4, "b", LockManager.WRITE);
+	    check(engine, "younger requester waits", w4.waiting());
+	    Request w3 = new Request(lm, 3, "c", LockManager.WRITE);
+	    check(engine, "waiting younger wounded",
+		  w4.outcome() == Request.DEADLOCK && w3.waiting());
+	    lm.unlockAll(4);
+	    check(engine, "older granted", w3.outcome() == Request.GRANTED);
+	}
+	catch (DeadlockException de) {
+	    check(engine, "older not wounded", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 4; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // an older requester waits, a younger one dies
+    static void testWaitDie(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.WAIT_DIE);
+	try {
+	    lm.lock(2, "a", LockManager.WRITE);
+	    Request w1 = new Request(lm, 1, "a", LockManager.WRITE);
+	    check(engine, "older requester waits", w1.waiting());
+	    check(engine, "holder unharmed", lm.tryLock(2, "b", LockManager.WRITE));
+	    lm.unlockAll(2);
+	    check(engine, "older granted", w1.outcome() == Request.GRANTED);
+
+	    Request w3 = new Request(lm, 3, "a", LockManager.WRITE);
+	    check(engine, "younger requester dies", w3.outcome() == Request.DEADLOCK);
+	}
+	catch (DeadlockException de) {
+	    check(engine, "older does not die", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 3; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // a row lock takes the intention lock on its table, which holds
+    // back table locks but not locks on other rows
+    static void testIntention(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.DETECT);
+	try {
+	    check(engine, "row write", lm.lock(1, "T", "r1", LockManager.WRITE));
+	    check(engine, "IX holds back table read",
+		  !lm.tryLock(2, "T", LockManager.READ));
+	    check(engine, "IX holds back table write",
+		  !lm.tryLock(2, "T", LockManager.WRITE));
+	    check(engine, "other row writable",
+		  lm.lock(3, "T", "r2", LockManager.WRITE, 0));
+	    check(engine, "same row held",
+		  !lm.lock(4, "T", "r1", LockManager.READ, 0));
+	    check(engine, "row read", lm.lock(5, "U", "r1", LockManager.READ));
+	    check(engine, "IS admits table read",
+		  lm.tryLock(6, "U", LockManager.READ));
+	    check(engine, "table read holds back row write",
+		  !lm.lock(7, "U", "r2", LockManager.WRITE, 0));
+	    check(engine, "table read covers row read",
+		  lm.lock(6, "U", "r2", LockManager.READ, 0));
+	}
+	catch (DeadlockException de) {
+	    check(engine, "no deadlock", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 7; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // past the threshold a row lock locks the whole table
+    static void testEscalation(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.DETECT);
+	lm.setEscalationThreshold(3);
+	try {
+	    lm.lock(1, "T", "a", LockManager.READ);
+	    lm.lock(1, "T", "b", LockManager.READ);
+	    check(engine, "rows below threshold",
+		  lm.lock(2, "T", "z", LockManager.WRITE, 0));
+	    lm.unlockAll(2);
+	    lm.lock(1, "T", "c", LockManager.READ);
+	    check(engine, "read escalates to table read",
+		  !lm.lock(2, "T", "z", LockManager.WRITE, 0)
+		  && lm.lock(3, "T", "z", LockManager.READ, 0));
+	    lm.lock(4, "U", "a", LockManager.WRITE);
+	    lm.lock(4, "U", "b", LockManager.WRITE);
+	    lm.lock(4, "U", "c", LockManager.WRITE);
+	    check(engine, "write escalates to table write",
+		  !lm.lock(5, "U", "z", LockManager.READ, 0));
+	}
+	catch (DeadlockException de) {
+	    check(engine, "no deadlock", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 5; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // a row is locked through its key in the dictionary, which keeps a
+    // bounded number of keys
+    static void testKeys(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.DETECT);
+	LockKeys keys = ((AbstractLockManager) lm).keys;
+	try {
+	    lm.lock(1, "T", "a", LockManager.READ);
+	    LockKey a = keys.get("T", "a");
+	    lm.lock(2, LockKey.of("T", "a"), LockManager.READ);
+	    check(engine, "key in dictionary", a != null && a.getId() >= 0
+		  && keys.get("T", "a") == a);
+	    // a row in the same slot takes it over
+	    int i = 0;
+	    while (LockKeys.slot("b" + i) != LockKeys.slot("a")) {
+		i++;
+	    }
+	    String b = "b" + i;
+	    lm.lockAll(3, new LockKey[] { LockKey.of("T", b) }, LockManager.WRITE);
+	    check(engine, "row replaces row in its slot", keys.get("T", "a") == null
+		  && keys.get("T", b).getRowId() == a.getRowId() + LockKeys.SLOTS);
+	    check(engine, "row locked under its name",
+		  !lm.lock(4, "T", "a", LockManager.WRITE, 0));
+	}
+	catch (DeadlockException de) {
+	    check(engine, "no deadlock", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 4; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // a range lock holds back inserts into the range, but not writes
+    // outside it
+    static void testRange(String engine)
+    {
+	LockManager lm = newLockManager(engine, LockManager.DETECT);
+	try {
+	    // rows written before the table has an index are not in it, so
+	    // ranges wait for their writers
+	    lm.lock(1, "T", "k", LockManager.WRITE);
+	    Request s2 = new Request(lm, 2, "T", "a", "z");
+	    check(engine, "first range waits for earlier writer", s2.waiting());
+	    Request s3 = new Request(lm, 3, "T", "c", "m");
+	    check(engine, "later range waits for earlier writer", s3.waiting());
+	    lm.unlockAll(1);
+	    check(engine, "ranges granted once writer is done",
+		  s2.outcome() == Request.GRANTED && s3.outcome() == Request.GRANTED);
+	    lm.unlockAll(2);
+	    lm.unlockAll(3);
+
+	    check(engine, "range", lm.lockRange(4, "T", "c", "m"));
+	    check(engine, "insert in range held back",
+		  !lm.lock(5, "T", "k", LockManager.WRITE, 0));
+	    lm.unlockAll(5);
+	    check(engine, "write outside range",
+		  lm.lock(6, "T", "x", LockManager.WRITE, 0));
+	    check(engine, "read in range",
+		  lm.lock(7, "T", "k", LockManager.READ, 0));
+	    lm.unlockAll(7);
+	    lm.unlockAll(4);
+	    check(engine, "insert after range released",
+		  lm.lock(5, "T", "k", LockManager.WRITE, 0));
+	}
+	catch (DeadlockException de) {
+	    check(engine, "no deadlock", false);
+	}
+	finally {
+	    for (int xid = 1; xid <= 7; xid++) {
+		lm.unlockAll(xid);
+	    }
+	}
+    }
+
+    // the engine made by default parks a waiting lockAsync without
+    // giving the wait executor a thread to block
+    static void testFactoryDefault()
+    {
+	LockManager lm = LockManagerFactory.newLockManager(null);
+	final int[] tasks = new int[1];
+	lm.setWaitExecutor(new Executor() {
+		public void execute(Runnable task) {
+		    synchronized (tasks) {
+			tasks[0]++;
+		    }
+		    new Thread(task).start();
+		}
+	    });
+	try {
+	    lm.lock(1, "a", LockManager.WRITE);
+	    CompletableFuture<Boolean> waiting = lm.lockAsync(2, "a", LockManager.WRITE, -1);
+	    synchronized (tasks) {
+		check("factory", "waiting request holds no thread",
+		      !waiting.isDone() && tasks[0] == 0);
+	    }
+	    lm.unlockAll(1);
+	    check("factory", "waiting request granted", granted(waiting));
+	}
+	catch (DeadlockException de) {
+	    check("factory", "no deadlock", false);
+	}
+	finally {
+	    lm.unlockAll(1);
+	    lm.unlockAll(2);
+	}
+    }
+
+    static LockManager newLockManager(String engine, int deadlockMode)
+    {
+	LockManager lm = LockManagerFactory.newLockManager(engine);
+	lm.setDeadlockMode(deadlockMode);
+	lm.setVictimRule(LockManager.VICTIM_YOUNGEST);
+	lm.setEscalationThreshold(1000);
+	return lm;
+    }
+
+    static void check(String engine, String what, boolean ok)
+    {
+	if (!ok) {
+	    failures++;
+	}
+	System.out.println((ok ? "PASS " : "FAIL ") + engine + ": " + what);
+    }
+
+    // whether an asynchronous request is granted
+    static boolean granted(CompletableFuture<Boolean> request)
+    {
+	try {
+	    return request.get(5, TimeUnit.SECONDS);
+	}
+	catch (Exception e) {
+	    return false;
+	}
+    }
+
+    // A blocking lock request made by a thread of its own, so that a
+    // test can see it wait and then see how it ends; a range lock of
+    // table strData if hi is not null.
+    static class Request extends Thread {
+
+	static final String GRANTED = "granted";
+	static final String REFUSED = "refused";
+	static final String DEADLOCK = "deadlock";
+
+	AbstractLockManager lm;
+	int xid;
+	String strData;
+	int lockType;
+	String lo;
+	String hi;
+	volatile String outcome;    // null until the request returns
+
+	public Request(LockManager lm, int xid, String strData, int lockType)
+	{
+	    this.lm = (AbstractLockManager) lm;
+	    this.xid = xid;
+	    this.strData = strData;
+	    this.lockType = lockType;
+	    setDaemon(true);
+	    start();
+	}
+
+	public Request(LockManager lm, int xid, String table, String lo, String hi)
+	{
+	    this.lm = (AbstractLockManager) lm;
+	    this.xid = xid;
+	    this.strData = table;
+	    this.lo = lo;
+	    this.hi = hi;
+	    setDaemon(true);
+	    start();
+	}
+
+	public void run()
+	{
+	    try {
+		boolean granted = (hi != null) ? lm.lockRange(xid, strData, lo, hi)
+		    : lm.lock(xid, strData, lockType);
+		outcome = granted ? GRANTED : REFUSED;
+	    }
+	    catch (DeadlockException de) {
+		outcome = DEADLOCK;
+	    }
+	}
+
+	// whether the request is queued and its thread asleep, past the
+	// deadlock check; polls until it is or the request has returned
+	boolean waiting()
+	{
+	    long until = System.currentTimeMillis() + 5000;
+	    while (outcome == null && System.currentTimeMillis() < until) {
+		State state = getState();
+		if (lm.isWaiting(xid)
+		    && (state == State.WAITING || state == State.TIMED_WAITING)) {
+		    return true;
+		}
+		Thread.yield();
+	    }
+	    return false;
+	}
+
+	// how the request ended, or null if it has not
+	String outcome()
+	{
+	    try {
+		join(5000);
+	    }
+	    catch (InterruptedException ie) {
+	    }
+	    return outcome;
+	}
+    }
+
     static void test2()
     {
 	System.out.println("Lock conversion test");
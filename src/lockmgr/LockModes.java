@@ -0,0 +1,73 @@
+package lockmgr;
+
+/*
+    Compatibility and conversion of the hierarchical lock modes.  READ
+    and WRITE double as the S and X modes; IS, IX and SIX are only
+    meaningful on table resources.  UPDATE (U) is a read lock that
+    will be converted to WRITE: it admits readers but no other U, so
+    two read-then-write transactions queue up instead of deadlocking
+    on the conversion.  Indexed by the mode constants of LockManager:
+    S, X, IS, IX, SIX, U.
+*/
+
+class LockModes
+{
+    static final int NONE = -1;
+
+    private static final int S = LockManager.READ;
+    private static final int X = LockManager.WRITE;
+    private static final int IS = LockManager.IS;
+    private static final int IX = LockManager.IX;
+    private static final int SIX = LockManager.SIX;
+    private static final int U = LockManager.UPDATE;
+
+    private static final boolean[][] COMPATIBLE = {
+        //            S      X      IS     IX     SIX    U
+        /* S   */ { true,  false, true,  false, false, true  },
+        /* X   */ { false, false, false, false, false, false },
+        /* IS  */ { true,  false, true,  true,  true,  true  },
+        /* IX  */ { false, false, true,  true,  false, false },
+        /* SIX */ { false, false, true,  false, false, false },
+        /* U   */ { true,  false, true,  false, false, false },
+    };
+
+    // the weakest mode at least as strong as both modes
+    private static final int[][] SUPREMUM = {
+        //            S    X    IS   IX   SIX  U
+        /* S   */ { S,   X,   S,   SIX, SIX, U   },
+        /* X   */ { X,   X,   X,   X,   X,   X   },
+        /* IS  */ { S,   X,   IS,  IX,  SIX, U   },
+        /* IX  */ { SIX, X,   IX,  IX,  SIX, X   },
+        /* SIX */ { SIX, X,   SIX, SIX, SIX, X   },
+        /* U   */ { U,   X,   U,   X,   X,   U   },
+    };
+
+    private static final String[] NAMES = { "S", "X", "IS", "IX", "SIX", "U" };
+
+    static boolean isValid(int mode) {
+        return mode >= 0 && mode < NAMES.length;
+    }
+
+    static boolean compatible(int held, int requested) {
+        return COMPATIBLE[held][requested];
+    }
+
+    static int supremum(int mode1, int mode2) {
+        return SUPREMUM[mode1][mode2];
+    }
+
+    // true if holding <tt>held</tt> makes a request for
+    // <tt>requested</tt> redundant
+    static boolean covers(int held, int requested) {
+        return SUPREMUM[held][requested] == held;
+    }
+
+    // the intention mode a row lock of mode <tt>mode</tt> needs on its table
+    static int intention(int mode) {
+        return (mode == S) ? IS : IX;
+    }
+
+    static String name(int mode) {
+        return isValid(mode) ? NAMES[mode] : "NONE";
+    }
+}
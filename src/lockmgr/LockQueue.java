@@ -0,0 +1,394 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    The locks held on, and the FIFO queue of requests waiting for, a
+    single data item.  Callers synchronize on the owning lock table,
+    except for the fast READ and IS locks.
+
+    Fast locks are only counted, in one state word, and taken with a
+    compare-and-set while the gate for their mode is open.  A gate is
+    open only while nothing waits and every holder is compatible with
+    the mode.  The caller closes both gates before it adds a holder or
+    a waiter, so that the counts can only fall until it reopens them.
+
+    Under the FIFO grant policy requests are granted in the order they
+    arrive.  The other policies let some requests overtake waiting
+    ones: readers under GRANT_READERS, writers under GRANT_WRITERS, and
+    any request compatible with the holders under GRANT_BATCH.  Every
+    waiter counts how often it has been overtaken, and once it has been
+    overtaken <tt>bound</tt> times nothing may overtake it again.
+*/
+
+class LockQueue
+{
+    private String key;
+    private ArrayList<LockRequest> holders = new ArrayList<LockRequest>(4);
+    private LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+    // a released request kept for the next immediate grant
+    private LockRequest spare = null;
+    // dropped from its stripe; its gates stay closed for good
+    private boolean retired = false;
+    LockStats.Counters stats;    // null if statistics are off
+
+    // the state word: fast READ count in bits 0-29, fast IS count in
+    // bits 30-59, and the closed flags of the two gates
+    private final AtomicLong fast = new AtomicLong(LockQueue.CLOSED);
+    private static final long READ_ONE = 1L;
+    private static final long IS_ONE = 1L << 30;
+    private static final long COUNT_MASK = (1L << 30) - 1;
+    private static final long READ_CLOSED = 1L << 62;
+    private static final long IS_CLOSED = 1L << 63;
+    private static final long CLOSED = READ_CLOSED | IS_CLOSED;
+
+    LockQueue(String key) {
+        this.key = key;
+    }
+
+    String getKey() {
+        return this.key;
+    }
+
+    // returns the lock <tt>xid</tt> holds on this item, or null
+    LockRequest holder(int xid) {
+        int size = this.holders.size();
+        for (int i = 0; i < size; i++) {
+            LockRequest held = this.holders.get(i);
+            if (held.xid == xid) {
+                return held;
+            }
+        }
+        return null;
+    }
+
+    // returns true if a lock of type <tt>lockType</tt> requested by
+    // <tt>xid</tt> conflicts with a lock held by another transaction
+    boolean conflicts(int xid, int lockType) {
+        long state = this.fast.get();
+        if ((state & COUNT_MASK) != 0 && conflict(LockManager.READ, lockType)) {
+            return true;
+        }
+        if (((state >>> 30) & COUNT_MASK) != 0 && conflict(LockManager.IS, lockType)) {
+            return true;
+        }
+        int size = this.holders.size();
+        for (int i = 0; i < size; i++) {
+            LockRequest held = this.holders.get(i);
+            if (held.xid != xid && conflict(held.lockType, lockType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns the transactions holding this item in a mode that
+    // conflicts with <tt>lockType</tt>.  Fast locks are not known, so
+    // this is only exact for a mode that READ and IS do not conflict
+    // with, such as READ.
+    ArrayList<Integer> holders(int lockType) {
+        ArrayList<Integer> holders = new ArrayList<Integer>();
+        int size = this.holders.size();
+        for (int i = 0; i < size; i++) {
+            LockRequest held = this.holders.get(i);
+            if (conflict(held.lockType, lockType)) {
+                holders.add(held.xid);
+            }
+        }
+        return holders;
+    }
+
+    // returns the transactions <tt>request</tt> has to wait for: the
+    // conflicting holders and the conflicting requests queued ahead of
+    // it.  Fast locks are not known; the caller turns them into
+    // ordinary ones first.
+    ArrayList<Integer> blockers(LockRequest request) {
+        ArrayList<Integer> blockers = new ArrayList<Integer>();
+        int size = this.holders.size();
+        for (int i = 0; i < size; i++) {
+            LockRequest held = this.holders.get(i);
+            if (held.xid != request.xid && conflict(held.lockType, request.lockType)) {
+                blockers.add(held.xid);
+            }
+        }
+        ListIterator<LockRequest> it = this.waiters.listIterator();
+        while (it.hasNext()) {
+            LockRequest ahead = it.next();
+            if (ahead == request) {
+                break;
+            }
+            if (ahead.xid != request.xid && conflict(ahead.lockType, request.lockType)) {
+                blockers.add(ahead.xid);
+            }
+        }
+        return blockers;
+    }
+
+    // returns the requests queued behind <tt>request</tt>, or all of
+    // them if <tt>request</tt> is null
+    ArrayList<LockRequest> behind(LockRequest request) {
+        ArrayList<LockRequest> behind = new ArrayList<LockRequest>();
+        int index = (request == null) ? -1 : this.waiters.indexOf(request);
+        if (request == null || index >= 0) {
+            behind.addAll(this.waiters.subList(index + 1, this.waiters.size()));
+        }
+        return behind;
+    }
+
+    private static boolean conflict(int lockType1, int lockType2) {
+        return !LockModes.compatible(lockType1, lockType2);
+    }
+
+    boolean hasWaiters() {
+        return !this.waiters.isEmpty();
+    }
+
+    // nobody holds or waits for the item, apart from fast locks
+    boolean isIdle() {
+        return this.holders.isEmpty() && this.waiters.isEmpty();
+    }
+
+    // Closes the gates for good if the item has no holders, waiters or
+    // fast locks, and returns whether it did; a fast reader still
+    // holding on to the queue then fails and takes the monitor.
+    boolean retire() {
+        if (!isIdle()) {
+            return false;
+        }
+        closeGates();
+        if (fastCount(LockManager.READ) + fastCount(LockManager.IS) > 0) {
+            openGates();
+            return false;
+        }
+        this.retired = true;
+        return true;
+    }
+
+    // READ and IS requests are readers, all others writers
+    private static boolean reader(int lockType) {
+        return lockType == LockManager.READ || lockType == LockManager.IS;
+    }
+
+    // whether <tt>waiter</tt> may not be overtaken any more
+    private static boolean barrier(LockRequest waiter, int bound) {
+        return waiter.overtaken >= bound;
+    }
+
+    // returns true if a new request of <tt>xid</tt>, which holds no
+    // lock on this item, can be granted at once.  Under GRANT_READERS
+    // a reader is granted past the waiters, which it overtakes, unless
+    // one of them may not be overtaken any more.
+    boolean grantable(int xid, int lockType, int policy, int bound) {
+        if (conflicts(xid, lockType)) {
+            return false;
+        }
+        if (this.waiters.isEmpty()) {
+            return true;
+        }
+        if (policy != LockManager.GRANT_READERS || !reader(lockType)) {
+            return false;
+        }
+        for (LockRequest waiter : this.waiters) {
+            if (barrier(waiter, bound)) {
+                return false;
+            }
+        }
+        for (LockRequest waiter : this.waiters) {
+            waiter.overtaken++;
+        }
+        return true;
+    }
+
+    // takes a fast lock of mode lockType, READ or IS, if its gate is
+    // open; needs no monitor
+    boolean tryFast(int lockType) {
+        long closed = (lockType == LockManager.READ) ? READ_CLOSED : IS_CLOSED;
+        long one = (lockType == LockManager.READ) ? READ_ONE : IS_ONE;
+        while (true) {
+            long state = this.fast.get();
+            if ((state & closed) != 0) {
+                return false;
+            }
+            if (this.fast.compareAndSet(state, state + one)) {
+                return true;
+            }
+        }
+    }
+
+    // releases a fast lock; needs no monitor.  Returns true if its mode
+    // has no fast holders left while a gate is closed, when a waiter
+    // may have been waiting for them to go, or if no fast lock is left
+    // at all, when the queue may have become idle.
+    boolean releaseFast(int lockType) {
+        long one = (lockType == LockManager.READ) ? READ_ONE : IS_ONE;
+        int shift = (lockType == LockManager.READ) ? 0 : 30;
+        long state = this.fast.addAndGet(-one);
+        if ((state & ~CLOSED) == 0) {
+            return true;
+        }
+        return (state & CLOSED) != 0 && ((state >>> shift) & COUNT_MASK) == 0;
+    }
+
+    // the number of fast locks of mode lockType
+    int fastCount(int lockType) {
+        int shift = (lockType == LockManager.READ) ? 0 : 30;
+        return (int) ((this.fast.get() >>> shift) & COUNT_MASK);
+    }
+
+    // closes both gates, before the holders or the waiters change
+    void closeGates() {
+        while (true) {
+            long state = this.fast.get();
+            if ((state & CLOSED) == CLOSED || this.fast.compareAndSet(state, state | CLOSED)) {
+                return;
+            }
+        }
+    }
+
+    // opens the gates the holders and waiters now allow
+    void openGates() {
+        if (this.retired) {
+            return;
+        }
+        long open = 0;
+        if (this.waiters.isEmpty()) {
+            open = CLOSED;
+            int size = this.holders.size();
+            for (int i = 0; i < size && open != 0; i++) {
+                int lockType = this.holders.get(i).lockType;
+                if (conflict(lockType, LockManager.READ)) {
+                    open &= ~READ_CLOSED;
+                }
+                if (conflict(lockType, LockManager.IS)) {
+                    open &= ~IS_CLOSED;
+                }
+            }
+        }
+        while (true) {
+            long state = this.fast.get();
+            long next = (state | CLOSED) & ~open;
+            if (state == next || this.fast.compareAndSet(state, next)) {
+                return;
+            }
+        }
+    }
+
+    // grants <tt>xid</tt> a lock that conflicts with nothing, without
+    // queueing it
+    void grant(int xid, int lockType) {
+        LockRequest request = this.spare;
+        if (request == null) {
+            request = new LockRequest(xid, lockType, false);
+            request.granted = true;
+        } else {
+            this.spare = null;
+            request.reset(xid, lockType);
+        }
+        this.holders.add(request);
+    }
+
+    // queues a request; upgrades go ahead of plain requests, since
+    // their transaction already holds the item.  Under GRANT_WRITERS a
+    // writer goes ahead of the readers queued after the last upgrade,
+    // writer or reader that may not be overtaken any more.
+    void enqueue(LockRequest request, int policy, int bound) {
+        request.queued = true;
+        request.overtaken = 0;
+        if (!request.upgrade && policy == LockManager.GRANT_WRITERS && !reader(request.lockType)) {
+            int index = 0;
+            int i = 0;
+            for (LockRequest waiter : this.waiters) {
+                i++;
+                if (waiter.upgrade || !reader(waiter.lockType) || barrier(waiter, bound)) {
+                    index = i;
+                }
+            }
+            ListIterator<LockRequest> it = this.waiters.listIterator(index);
+            while (it.hasNext()) {
+                it.next().overtaken++;
+            }
+            this.waiters.add(index, request);
+            return;
+        }
+        if (!request.upgrade) {
+            this.waiters.addLast(request);
+            return;
+        }
+        ListIterator<LockRequest> it = this.waiters.listIterator();
+        while (it.hasNext()) {
+            if (!it.next().upgrade) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(request);
+    }
+
+    void cancel(LockRequest request) {
+        this.waiters.remove(request);
+    }
+
+    void release(int xid) {
+        for (int i = this.holders.size() - 1; i >= 0; i--) {
+            LockRequest held = this.holders.get(i);
+            if (held.xid == xid) {
+                this.holders.remove(i);
+                if (!held.queued) {
+                    // nobody else can still be looking at it
+                    this.spare = held;
+                }
+            }
+        }
+    }
+
+    // grants waiting requests in queue order, stopping at the first one
+    // that still conflicts.  Under GRANT_READERS the readers behind it
+    // that no longer conflict are granted as well, and under
+    // GRANT_BATCH every request that no longer conflicts, unless one
+    // that may not be overtaken any more is in the way.  Returns the
+    // requests that were granted; the caller is responsible for waking
+    // them up.
+    ArrayList<LockRequest> grantWaiters(int policy, int bound) {
+        ArrayList<LockRequest> granted = null;
+        boolean skipping = (policy == LockManager.GRANT_READERS || policy == LockManager.GRANT_BATCH);
+        int skipped = 0;    // the waiters passed over so far, at the head of the queue
+        ListIterator<LockRequest> it = this.waiters.listIterator();
+        while (it.hasNext()) {
+            LockRequest request = it.next();
+            if (conflicts(request.xid, request.lockType)
+                || (skipped > 0 && policy == LockManager.GRANT_READERS && !reader(request.lockType))) {
+                if (!skipping || barrier(request, bound)) {
+                    break;
+                }
+                skipped++;
+                continue;
+            }
+            it.remove();
+            boolean stop = false;
+            if (skipped > 0) {
+                ListIterator<LockRequest> passed = this.waiters.listIterator();
+                for (int i = 0; i < skipped; i++) {
+                    LockRequest waiter = passed.next();
+                    waiter.overtaken++;
+                    stop |= barrier(waiter, bound);
+                }
+            }
+            if (request.upgrade) {
+                holder(request.xid).lockType = request.lockType;
+            } else {
+                this.holders.add(request);
+            }
+            if (granted == null) {
+                granted = new ArrayList<LockRequest>(2);
+            }
+            granted.add(request);
+            if (stop) {
+                break;
+            }
+        }
+        return granted;
+    }
+}
@@ -0,0 +1,78 @@
+package lockmgr;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/*
+    A lock request queued on a LockQueue.  The request is granted in
+    place by whoever releases the conflicting lock, so the waiting
+    thread never has to re-examine the lock table when it wakes up.
+    An asynchronous request has no waiting thread; its future is
+    completed instead.
+*/
+
+class LockRequest
+{
+    int xid;
+    int lockType;
+    boolean upgrade;    // conversion of a lock already held, lockType being the converted mode
+    boolean granted = false;
+    boolean aborted = false;    // chosen as a deadlock victim while waiting
+    boolean queued = false;    // has been on the wait queue, so other threads may still refer to it
+    LockQueue queue;    // the queue it waits in, while it waits
+    CompletableFuture<Boolean> future;    // completed when an asynchronous request is settled
+    ScheduledFuture<?> timeout;    // expires an asynchronous request
+    long since;    // System.nanoTime() when it was queued
+    int overtaken;    // times a later request was granted first, while it waited
+
+    LockRequest(int xid, int lockType, boolean upgrade) {
+        this.xid = xid;
+        this.lockType = lockType;
+        this.upgrade = upgrade;
+    }
+
+    // reuses a granted request that was never queued for another lock
+    void reset(int xid, int lockType) {
+        this.xid = xid;
+        this.lockType = lockType;
+    }
+
+    // hand the lock over to the waiting thread
+    synchronized void grant() {
+        this.granted = true;
+        notify();
+    }
+
+    // wake the waiting thread up with a deadlock, unless the lock has
+    // already been handed over
+    synchronized void abort() {
+        if (!this.granted) {
+            this.aborted = true;
+            notify();
+        }
+    }
+
+    // blocks until the request is granted, aborted, or <tt>millis</tt>
+    // have passed; returns whether the request was granted.
+    synchronized boolean await(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!this.granted && !this.aborted) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            }
+            catch (InterruptedException e) {
+                System.out.println("Thread interrupted?");
+                break;
+            }
+        }
+        return this.granted;
+    }
+
+    public String toString() {
+        return "LockRequest::xid(" + this.xid + ")::lockType(" + this.lockType + ")";
+    }
+}
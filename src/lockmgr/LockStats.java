@@ -0,0 +1,322 @@
+package lockmgr;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Per data item lock statistics: acquisitions, conflicts, upgrades,
+ * deadlock aborts, a histogram of wait times, and how often waiting
+ * requests were overtaken under the grant policy.  Counting is off
+ * unless -DlockStats=on or setEnabled(true); while it is off a lock
+ * request pays one volatile read.  The counters are updated without
+ * taking any lock, so that counting an uncontended acquisition costs
+ * one map lookup and one increment; everything else is counted on
+ * paths that wait anyway.
+ * <p>
+ * At most -DlockStatsKeys data items are counted one by one; the
+ * items locked while that many are counted only add to the totals.
+ * Once as many such requests as the limit have been made, the
+ * half of the items with the fewest conflicts and acquisitions is
+ * folded into the totals and forgotten, so that hot items stay while a
+ * scan of cold rows passes through.  Counts made by a lock request
+ * racing with the eviction of its item are lost.
+ */
+public class LockStats implements LockStatsMXBean
+{
+    private static final int BUCKETS = 16;
+    private static final int TOP = 10;
+
+    private volatile boolean enabled = "on".equals(System.getProperty("lockStats"));
+    private final int capacity = Math.max(2, Integer.getInteger("lockStatsKeys", 4096));
+    // data item -> its counters
+    private final ConcurrentHashMap<String, Counters> keys = new ConcurrentHashMap<String, Counters>();
+    // the counters of the data items evicted so far, folded together,
+    // which also count the items not admitted while the map is full
+    private final Counters evicted = new Counters();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    // the hottest item first: the most conflicts, then the most
+    // acquisitions, then by name
+    private static final Comparator<KeyStats> HOTTEST = new Comparator<KeyStats>() {
+        public int compare(KeyStats a, KeyStats b) {
+            if (a.getConflicts() != b.getConflicts()) {
+                return (a.getConflicts() > b.getConflicts()) ? -1 : 1;
+            }
+            if (a.getAcquisitions() != b.getAcquisitions()) {
+                return (a.getAcquisitions() > b.getAcquisitions()) ? -1 : 1;
+            }
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    // the counters of one data item
+    static final class Counters
+    {
+        final LongAdder acquisitions = new LongAdder();
+        final LongAdder conflicts = new LongAdder();
+        final LongAdder upgrades = new LongAdder();
+        final LongAdder deadlocks = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final AtomicLongArray waits = new AtomicLongArray(BUCKETS);
+        final LongAdder overtakes = new LongAdder();
+        final AtomicLong mostOvertaken = new AtomicLong();
+    }
+
+    // the counters of data item key, or null if counting is off
+    Counters counters(String key) {
+        if (!this.enabled) {
+            return null;
+        }
+        Counters counters = this.keys.get(key);
+        if (counters == null) {
+            if (this.keys.size() >= this.capacity) {
+                // counted with the totals until an eviction makes room
+                if (this.misses.incrementAndGet() >= this.capacity) {
+                    evict();
+                }
+                return this.evicted;
+            }
+            counters = new Counters();
+            Counters raced = this.keys.putIfAbsent(key, counters);
+            if (raced != null) {
+                counters = raced;
+            }
+        }
+        return counters;
+    }
+
+    void acquired(Counters counters) {
+        if (counters != null) {
+            counters.acquisitions.increment();
+        }
+    }
+
+    void conflict(Counters counters) {
+        if (counters != null) {
+            counters.conflicts.increment();
+        }
+    }
+
+    void upgrade(Counters counters) {
+        if (counters != null) {
+            counters.upgrades.increment();
+        }
+    }
+
+    void deadlock(Counters counters) {
+        if (counters != null) {
+            counters.deadlocks.increment();
+        }
+    }
+
+    // a request granted after waiting since waitStart, a System.nanoTime()
+    void waited(Counters counters, long waitStart) {
+        if (counters == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - waitStart;
+        counters.waitNanos.add(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = (millis == 0) ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+        counters.waits.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    // a request granted after being overtaken <tt>times</tt> times
+    void overtaken(Counters counters, int times) {
+        if (counters == null || times == 0) {
+            return;
+        }
+        counters.overtakes.add(times);
+        long most = counters.mostOvertaken.get();
+        while (times > most && !counters.mostOvertaken.compareAndSet(most, times)) {
+            most = counters.mostOvertaken.get();
+        }
+    }
+
+    /**
+     * Turns counting on or off.  Under the queue engines an item whose
+     * lock queue exists already is counted once the queue is next
+     * created.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the statistics of the <tt>n</tt> data items with the most
+     * conflicts, the busiest first among items with as many.  The
+     * counters are read one by one while locking goes on, so a
+     * snapshot is only approximately consistent.
+     */
+    public ArrayList<KeyStats> hotKeys(int n) {
+        if (n <= 0) {
+            return new ArrayList<KeyStats>();
+        }
+        // the n hottest so far, the coldest of them at the head
+        PriorityQueue<KeyStats> hot = new PriorityQueue<KeyStats>(n + 1, Collections.reverseOrder(HOTTEST));
+        for (Map.Entry<String, Counters> entry : this.keys.entrySet()) {
+            hot.add(snapshot(entry.getKey(), entry.getValue()));
+            if (hot.size() > n) {
+                hot.poll();
+            }
+        }
+        ArrayList<KeyStats> all = new ArrayList<KeyStats>(hot);
+        Collections.sort(all, HOTTEST);
+        return all;
+    }
+
+    // folds the colder half of the items counted into evicted
+    private synchronized void evict() {
+        if (this.misses.get() < this.capacity) {
+            return;    // another thread has evicted
+        }
+        this.misses.set(0);
+        ArrayList<Cold> all = new ArrayList<Cold>(this.keys.size());
+        for (Map.Entry<String, Counters> entry : this.keys.entrySet()) {
+            all.add(new Cold(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(all);
+        for (int i = 0; i < all.size() - this.capacity / 2; i++) {
+            if (this.keys.remove(all.get(i).key, all.get(i).counters)) {
+                fold(all.get(i).counters);
+            }
+        }
+    }
+
+    // an item as a candidate for eviction, the coldest first
+    private static final class Cold implements Comparable<Cold>
+    {
+        final String key;
+        final Counters counters;
+        final long conflicts;
+        final long acquisitions;
+
+        Cold(String key, Counters counters) {
+            this.key = key;
+            this.counters = counters;
+            this.conflicts = counters.conflicts.sum();
+            this.acquisitions = counters.acquisitions.sum();
+        }
+
+        public int compareTo(Cold other) {
+            if (this.conflicts != other.conflicts) {
+                return Long.compare(this.conflicts, other.conflicts);
+            }
+            return Long.compare(this.acquisitions, other.acquisitions);
+        }
+    }
+
+    private void fold(Counters counters) {
+        this.evicted.acquisitions.add(counters.acquisitions.sum());
+        this.evicted.conflicts.add(counters.conflicts.sum());
+        this.evicted.upgrades.add(counters.upgrades.sum());
+        this.evicted.deadlocks.add(counters.deadlocks.sum());
+        this.evicted.waitNanos.add(counters.waitNanos.sum());
+        for (int i = 0; i < BUCKETS; i++) {
+            this.evicted.waits.addAndGet(i, counters.waits.get(i));
+        }
+        this.evicted.overtakes.add(counters.overtakes.sum());
+        overtaken(this.evicted, (int) counters.mostOvertaken.get());
+    }
+
+    private static KeyStats snapshot(String key, Counters counters) {
+        long[] waits = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            waits[i] = counters.waits.get(i);
+        }
+        return new KeyStats(key, counters.acquisitions.sum(), counters.conflicts.sum(),
+                            counters.upgrades.sum(), counters.deadlocks.sum(),
+                            TimeUnit.NANOSECONDS.toMillis(counters.waitNanos.sum()), waits,
+                            counters.overtakes.sum(), counters.mostOvertaken.get());
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server as
+     * lockmgr:type=LockStats,name=<tt>name</tt>.
+     */
+    public void registerMBean(String name) throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            this, new ObjectName("lockmgr:type=LockStats,name=" + name));
+    }
+
+    public long getAcquisitions() {
+        long sum = this.evicted.acquisitions.sum();
+        for (Counters counters : this.keys.values()) {
+            sum += counters.acquisitions.sum();
+        }
+        return sum;
+    }
+
+    public long getConflicts() {
+        long sum = this.evicted.conflicts.sum();
+        for (Counters counters : this.keys.values()) {
+            sum += counters.conflicts.sum();
+        }
+        return sum;
+    }
+
+    public long getUpgrades() {
+        long sum = this.evicted.upgrades.sum();
+        for (Counters counters : this.keys.values()) {
+            sum += counters.upgrades.sum();
+        }
+        return sum;
+    }
+
+    public long getDeadlocks() {
+        long sum = this.evicted.deadlocks.sum();
+        for (Counters counters : this.keys.values()) {
+            sum += counters.deadlocks.sum();
+        }
+        return sum;
+    }
+
+    public long getOvertakes() {
+        long sum = this.evicted.overtakes.sum();
+        for (Counters counters : this.keys.values()) {
+            sum += counters.overtakes.sum();
+        }
+        return sum;
+    }
+
+    public long getMostOvertaken() {
+        long most = this.evicted.mostOvertaken.get();
+        for (Counters counters : this.keys.values()) {
+            most = Math.max(most, counters.mostOvertaken.get());
+        }
+        return most;
+    }
+
+    public long[] getWaitHistogram() {
+        long[] waits = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            waits[i] = this.evicted.waits.get(i);
+        }
+        for (Counters counters : this.keys.values()) {
+            for (int i = 0; i < BUCKETS; i++) {
+                waits[i] += counters.waits.get(i);
+            }
+        }
+        return waits;
+    }
+
+    public String[] getHotKeys() {
+        ArrayList<KeyStats> hot = hotKeys(TOP);
+        String[] lines = new String[hot.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = hot.get(i).toString();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,28 @@
+package lockmgr;
+
+/**
+ * JMX view of the statistics of one Lock Manager; see LockStats.
+ */
+public interface LockStatsMXBean
+{
+    public long getAcquisitions();
+
+    public long getConflicts();
+
+    public long getUpgrades();
+
+    public long getDeadlocks();
+
+    // times waiting requests were overtaken under the grant policy
+    public long getOvertakes();
+
+    // the most times any one request was overtaken; at most the
+    // starvation bound
+    public long getMostOvertaken();
+
+    // the wait time histogram over all data items, as in KeyStats
+    public long[] getWaitHistogram();
+
+    // the ten data items with the most conflicts
+    public String[] getHotKeys();
+}
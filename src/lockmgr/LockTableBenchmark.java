@@ -0,0 +1,113 @@
+package lockmgr;
+
+/*
+    Microbenchmark of the Lock Manager's hash tables: adds a lock on
+    each of n rows, looks each one up with get() and elements(), and
+    removes them again, reporting the average time per operation for
+    TPHashTable and LockHashTable.
+
+    Usage: java lockmgr.LockTableBenchmark [rows...]
+    The default is 10000 and 100000 rows; a million rows takes minutes,
+    nearly all of them spent in TPHashTable's chains.
+*/
+
+public class LockTableBenchmark
+{
+    private static final int TABLE_SIZE = 2039;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int[] counts = { 10000, 100000 };
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int i = 0; i < counts.length; i++) {
+            DataObj[] locks = new DataObj[counts[i]];
+            for (int j = 0; j < locks.length; j++) {
+                locks[j] = new DataObj(j + 1, "FLIGHTS" + j, LockManager.READ);
+            }
+            // the last round is reported, the earlier ones warm up
+            for (int round = 0; round < ROUNDS; round++) {
+                boolean report = (round == ROUNDS - 1);
+                runOld(locks, report);
+                runNew(locks, report);
+            }
+        }
+    }
+
+    private static void runOld(DataObj[] locks, boolean report) {
+        TPHashTable table = new TPHashTable(TABLE_SIZE);
+        long found = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            table.add(locks[i]);
+        }
+        long added = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            if (table.get(locks[i]) != null) {
+                found++;
+            }
+        }
+        long got = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            found += table.elements(locks[i]).size();
+        }
+        long listed = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            table.remove(locks[i]);
+        }
+        long removed = System.nanoTime();
+
+        if (report) {
+            print("TPHashTable", locks.length, start, added, got, listed, removed, found);
+        }
+    }
+
+    private static void runNew(DataObj[] locks, boolean report) {
+        LockHashTable table = new LockHashTable(TABLE_SIZE);
+        long found = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            table.add(locks[i]);
+        }
+        long added = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            if (table.get(locks[i]) != null) {
+                found++;
+            }
+        }
+        long got = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            found += table.elements(locks[i]).size();
+        }
+        long listed = System.nanoTime();
+        for (int i = 0; i < locks.length; i++) {
+            table.remove(locks[i]);
+        }
+        long removed = System.nanoTime();
+
+        if (report) {
+            print("LockHashTable", locks.length, start, added, got, listed, removed, found);
+        }
+    }
+
+    private static void print(String name, int n, long start, long added, long got,
+                              long listed, long removed, long found) {
+        System.out.println(name + " rows=" + n
+                           + " add=" + perOp(added - start, n)
+                           + " get=" + perOp(got - added, n)
+                           + " elements=" + perOp(listed - got, n)
+                           + " remove=" + perOp(removed - listed, n)
+                           + " ns/op (found " + found + ")");
+    }
+
+    private static String perOp(long nanos, int n) {
+        return String.valueOf(Math.round((double) nanos / n));
+    }
+}
@@ -0,0 +1,122 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A trace of the lock requests of sampled transactions: every request,
+ * the transactions it waited for, how long it took and whether it was
+ * granted, refused or ended in a deadlock.  -DlockTrace=N traces one
+ * transaction in N, by xid, and trace(xid, true) any transaction
+ * asked for; by default nothing is traced.  Events go to a ring
+ * buffer of -DlockTraceSize entries shared by all transactions, which
+ * keeps the most recent ones.
+ * <p>
+ * A request of a transaction that is not traced costs one volatile
+ * read while tracing is off, and a remainder while it samples.  A
+ * traced request allocates its event and takes one slot of the buffer
+ * with an atomic increment; nothing is locked but the event itself.
+ */
+public class LockTrace
+{
+    private volatile int every = Integer.getInteger("lockTrace", 0);
+    // transactions traced whether sampled or not
+    private final Set<Integer> forced = ConcurrentHashMap.newKeySet();
+    private volatile boolean on = this.every > 0;
+
+    private final AtomicReferenceArray<LockEvent> ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong(0);
+    // xid -> its request in progress
+    private final ConcurrentHashMap<Integer, LockEvent> pending = new ConcurrentHashMap<Integer, LockEvent>();
+
+    public LockTrace() {
+        int size = Integer.highestOneBit(Math.max(1, Integer.getInteger("lockTraceSize", 4096)));
+        this.ring = new AtomicReferenceArray<LockEvent>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Traces one transaction in <tt>every</tt>, by xid; 0 samples none.
+     */
+    public void setSampling(int every) {
+        this.every = every;
+        this.on = every > 0 || !this.forced.isEmpty();
+    }
+
+    /**
+     * Traces transaction <tt>xid</tt> whether it is sampled or not, or
+     * stops doing so.
+     */
+    public void trace(int xid, boolean on) {
+        if (on) {
+            this.forced.add(xid);
+        } else {
+            this.forced.remove(xid);
+        }
+        this.on = this.every > 0 || !this.forced.isEmpty();
+    }
+
+    // whether the requests of xid are traced
+    boolean traced(int xid) {
+        if (!this.on) {
+            return false;
+        }
+        int every = this.every;
+        if (every > 0 && xid % every == 0) {
+            return true;
+        }
+        return this.forced.contains(xid);
+    }
+
+    // starts the event of a request of a traced transaction
+    LockEvent begin(int xid, String strData, int lockType) {
+        LockEvent event = new LockEvent(xid, strData, lockType);
+        this.pending.put(xid, event);
+        return event;
+    }
+
+    // notes that xid, if traced, is about to wait for blockers
+    void blocked(int xid, ArrayList<Integer> blockers) {
+        if (!traced(xid)) {
+            return;
+        }
+        LockEvent event = this.pending.get(xid);
+        if (event != null) {
+            event.blocked(blockers);
+        }
+    }
+
+    // ends event with outcome and puts it in the buffer
+    void end(LockEvent event, int outcome) {
+        this.pending.remove(event.getXId(), event);
+        event.end(outcome);
+        event.sequence = this.next.getAndIncrement();
+        this.ring.set((int) event.sequence & this.mask, event);
+    }
+
+    /**
+     * Returns the events of transaction <tt>xid</tt> still in the
+     * buffer, oldest first.
+     */
+    public ArrayList<LockEvent> events(int xid) {
+        ArrayList<LockEvent> events = new ArrayList<LockEvent>();
+        for (int i = 0; i < this.ring.length(); i++) {
+            LockEvent event = this.ring.get(i);
+            if (event != null && event.getXId() == xid) {
+                events.add(event);
+            }
+        }
+        Collections.sort(events, new Comparator<LockEvent>() {
+            public int compare(LockEvent a, LockEvent b) {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        return events;
+    }
+}
@@ -0,0 +1,681 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Lock Manager in which every data item owns a FIFO queue of lock
+ * requests.  Releasing a lock grants the next compatible requests
+ * directly, so a woken thread already holds its lock and never has to
+ * compete for the lock table again.
+ * <p>
+ * The queues are spread over one or more stripes by the hash of the
+ * data item, each stripe guarded by its own monitor; see
+ * StripedLockManager.
+ * <p>
+ * A queue lives while its item is held or waited for, and is dropped
+ * from its stripe once it is idle, so the stripes only grow with the
+ * items in use.  While it lives it remembers a released request for
+ * reuse, so that locking an item again, by the same or another
+ * transaction, allocates nothing.
+ * <p>
+ * An asynchronous request waits in the queue like any other, but with
+ * a future in place of a sleeping thread; the grant completes it, and
+ * a timer withdraws it when it expires.
+ * <p>
+ * With -DlockFastRead=true, READ and IS locks on an item that nobody
+ * writes or waits for are taken with a single compare-and-set on the
+ * item's state word, without the stripe monitor, so that readers of
+ * a hot item do not queue up behind each other; see LockQueue.  A
+ * fast lock is recorded only under its holder, and the first request
+ * that needs the monitor turns the item's fast locks into ordinary
+ * ones, so the deadlock detector and wound-wait see every holder a
+ * waiter waits for.
+ */
+public class QueueLockManager extends AbstractLockManager
+{
+    // data item -> its lock queue, for the items hashing to one stripe.
+    // The map doubles as the monitor guarding the stripe's queues, but
+    // the fast path looks queues up without it.
+    private QueueStripe[] stripes;
+    // the transactions' holdings, spread over stripes by xid so that
+    // transactions seldom contend for them
+    private HeldStripe[] held;
+    private static final int SPARE_LIMIT = 64;    // per held stripe
+    protected boolean fastRead = Boolean.getBoolean("lockFastRead");
+    // returned by request() for a lock granted without waiting
+    private static final LockRequest GRANTED = new LockRequest(-1, LockManager.READ, false);
+
+    public QueueLockManager() {
+        this(1);
+    }
+
+    protected QueueLockManager(int nStripes) {
+        super();
+        if (nStripes < 1) {
+            nStripes = 1;
+        }
+        this.stripes = new QueueStripe[nStripes];
+        for (int i = 0; i < nStripes; i++) {
+            this.stripes[i] = new QueueStripe();
+        }
+        int nHeld = 1;
+        while (nHeld < 4 * Runtime.getRuntime().availableProcessors()) {
+            nHeld <<= 1;
+        }
+        this.held = new HeldStripe[nHeld];
+        for (int i = 0; i < nHeld; i++) {
+            this.held[i] = new HeldStripe();
+        }
+    }
+
+    // the locks of one transaction, and the request it waits on
+    private static class Holdings
+    {
+        ArrayList<LockQueue> locked = new ArrayList<LockQueue>();
+        ArrayList<LockQueue> fastRead = new ArrayList<LockQueue>();
+        ArrayList<LockQueue> fastIntent = new ArrayList<LockQueue>();
+        LockRequest waiting;
+
+        ArrayList<LockQueue> fast(int lockType) {
+            return (lockType == LockManager.READ) ? this.fastRead : this.fastIntent;
+        }
+
+        int size() {
+            return this.locked.size() + this.fastRead.size() + this.fastIntent.size();
+        }
+
+        void clear() {
+            this.locked.clear();
+            this.fastRead.clear();
+            this.fastIntent.clear();
+            this.waiting = null;
+        }
+    }
+
+    // a stripe of lock queues; a named class so that the stripes can
+    // be an array without a generic array creation
+    private static final class QueueStripe extends ConcurrentHashMap<String, LockQueue>
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // xid -> its Holdings, for the xids of one stripe, and emptied
+    // Holdings kept for reuse; guarded by itself
+    private static class HeldStripe
+    {
+        IntHashMap<Holdings> byXid = new IntHashMap<Holdings>();
+        ArrayList<Holdings> spare = new ArrayList<Holdings>();
+
+        Holdings holdings(int xid) {
+            Holdings holdings = this.byXid.get(xid);
+            if (holdings == null) {
+                int spare = this.spare.size();
+                holdings = (spare > 0) ? this.spare.remove(spare - 1) : new Holdings();
+                this.byXid.put(xid, holdings);
+            }
+            return holdings;
+        }
+    }
+
+    /**
+     * Locks the data item identified by <tt>strData</tt> in mode
+     * <tt>lockType</tt> on behalf of the transaction with id
+     * <tt>xid</tt>.  If the item is locked in a conflicting mode the
+     * request is queued behind the requests already waiting for it, and
+     * the calling thread sleeps until the lock is handed to it, a
+     * deadlock is detected or <tt>timeoutMillis</tt> have passed.  A
+     * request that gives up leaves the queue.
+     *
+     * @see LockManager#lock(int, String, int, long)
+     */
+    boolean lockItem(int xid, String strData, int lockType, long timeoutMillis)
+        throws DeadlockException
+    {
+        if (xid < 0 || strData == null) {
+            return false;
+        }
+        if (!LockModes.isValid(lockType)) {
+            return false;
+        }
+
+        checkWounded(xid);
+        if (lockFast(xid, strData, lockType)) {
+            return true;
+        }
+
+        LockRequest request = request(xid, strData, lockType, timeoutMillis != 0, null);
+        if (request == QueueLockManager.GRANTED) {
+            return true;
+        } else if (request == null) {
+            // try-lock, do not wait
+            return false;
+        }
+
+        boolean bounded = timeoutMillis > 0
+            && timeoutMillis < AbstractLockManager.DEADLOCK_TIMEOUT;
+        LockQueue queue = request.queue;
+        if (request.await(bounded ? timeoutMillis : AbstractLockManager.DEADLOCK_TIMEOUT)) {
+            return true;
+        }
+        synchronized (stripe(strData)) {
+            if (request.granted) {
+                // handed over just as the wait timed out
+                return true;
+            }
+            if (request.queue != null) {
+                // not yet withdrawn by unlockAll
+                cancel(queue, request);
+                request.queue = null;
+            }
+        }
+        if (bounded && !request.aborted) {
+            return false;
+        }
+        this.stats.deadlock(queue.stats);
+        if (request.aborted) {
+            throw new DeadlockException(xid, abortMessage());
+        }
+        throw new DeadlockException(xid, "Sleep timeout...deadlock.");
+    }
+
+    /**
+     * Queues a request that has to wait with a future, which the
+     * release of the conflicting locks completes; no thread is held.
+     *
+     * @see LockManager#lockAsync
+     */
+    public CompletableFuture<Boolean> lockAsync(int xid, String strData, int lockType, long timeoutMillis) {
+        CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        traceAsync(xid, strData, lockType, future);
+        if (xid < 0 || strData == null || !LockModes.isValid(lockType)) {
+            future.complete(false);
+            return future;
+        }
+
+        final LockRequest request;
+        try {
+            checkWounded(xid);
+            if (lockFast(xid, strData, lockType)) {
+                future.complete(true);
+                return future;
+            }
+            request = request(xid, strData, lockType, timeoutMillis != 0, future);
+        }
+        catch (DeadlockException deadlock) {
+            future.completeExceptionally(deadlock);
+            return future;
+        }
+        if (request == QueueLockManager.GRANTED || request == null) {
+            future.complete(request == QueueLockManager.GRANTED);
+            return future;
+        }
+
+        final boolean bounded = timeoutMillis > 0
+            && timeoutMillis < AbstractLockManager.DEADLOCK_TIMEOUT;
+        request.timeout = AbstractLockManager.TIMER.schedule(new Runnable() {
+                public void run() {
+                    giveUp(request, bounded);
+                }
+            }, bounded ? timeoutMillis : AbstractLockManager.DEADLOCK_TIMEOUT, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    // takes a fast READ or IS lock, if the fast path is on and the item
+    // has been locked before; no monitor is needed
+    private boolean lockFast(int xid, String strData, int lockType) {
+        if (!this.fastRead || (lockType != LockManager.READ && lockType != LockManager.IS)) {
+            return false;
+        }
+        LockQueue queue = stripe(strData).get(strData);
+        if (queue == null || !queue.tryFast(lockType)) {
+            return false;
+        }
+        HeldStripe stripe = heldStripe(xid);
+        synchronized (stripe) {
+            stripe.holdings(xid).fast(lockType).add(queue);
+        }
+        this.stats.acquired(queue.stats);
+        return true;
+    }
+
+    // Grants the lock at once if possible, returning GRANTED.
+    // Otherwise returns null if the caller may not wait, or queues and
+    // returns a new request, to be settled through future if that is
+    // not null.
+    private LockRequest request(int xid, String strData, int lockType, boolean mayWait,
+                                CompletableFuture<Boolean> future)
+        throws DeadlockException
+    {
+        ConcurrentHashMap<String, LockQueue> stripe = stripe(strData);
+        LockQueue queue;
+        synchronized (stripe) {
+            queue = stripe.get(strData);
+            if (queue == null) {
+                queue = new LockQueue(strData);
+                queue.stats = this.stats.counters(strData);
+                stripe.put(strData, queue);
+            }
+            if (!this.fastRead) {
+                return request(queue, xid, lockType, mayWait, future);
+            }
+            // no fast locks may be taken while we look at the holders
+            queue.closeGates();
+            try {
+                if (queue.fastCount(LockManager.READ) + queue.fastCount(LockManager.IS) > 0) {
+                    migrateFast(queue);
+                }
+                return request(queue, xid, lockType, mayWait, future);
+            }
+            finally {
+                queue.openGates();
+            }
+        }
+    }
+
+    // request() for the item's queue; must be called with its stripe
+    // held
+    private LockRequest request(LockQueue queue, int xid, int lockType, boolean mayWait,
+                                CompletableFuture<Boolean> future)
+        throws DeadlockException
+    {
+        LockRequest request;
+        LockRequest held = queue.holder(xid);
+        if (held != null) {
+            if (LockModes.covers(held.lockType, lockType)) {
+                // redundant lock request
+                return QueueLockManager.GRANTED;
+            }
+            int converted = LockModes.supremum(held.lockType, lockType);
+            if (!queue.conflicts(xid, converted)) {
+                // no other holder conflicts, convert in place;
+                // anybody queued now waits for us
+                held.lockType = converted;
+                waitBehind(queue, null, xid);
+                this.stats.upgrade(queue.stats);
+                this.stats.acquired(queue.stats);
+                return QueueLockManager.GRANTED;
+            }
+            request = new LockRequest(xid, converted, true);
+        } else {
+            if (queue.grantable(xid, lockType, this.grantPolicy, this.starvationBound)) {
+                queue.grant(xid, lockType);
+                addHeld(xid, queue);
+                // a reader may have overtaken the queue, which now
+                // waits for it
+                waitBehind(queue, null, xid);
+                this.stats.acquired(queue.stats);
+                return QueueLockManager.GRANTED;
+            }
+            request = new LockRequest(xid, lockType, false);
+        }
+        this.stats.conflict(queue.stats);
+        if (!mayWait) {
+            return null;
+        }
+        request.queue = queue;
+        request.future = future;
+        request.since = System.nanoTime();
+        queue.enqueue(request, this.grantPolicy, this.starvationBound);
+        HeldStripe stripe = heldStripe(xid);
+        synchronized (stripe) {
+            stripe.holdings(xid).waiting = request;
+        }
+        try {
+            if (request.upgrade || this.grantPolicy == LockManager.GRANT_WRITERS) {
+                // everybody queued behind now waits for the upgrade, or
+                // the writer that overtook them, too
+                waitBehind(queue, request, xid);
+            }
+            checkDeadlock(xid, queue.blockers(request));
+        }
+        catch (DeadlockException deadlock) {
+            cancel(queue, request);
+            this.stats.deadlock(queue.stats);
+            throw deadlock;
+        }
+        return request;
+    }
+
+    // Turns the fast locks held on queue into ordinary locks, so that a
+    // request that has to wait sees who it waits for, and one of the
+    // holders' own stronger requests does not wait for itself.  Fast
+    // locks are recorded only under their holders, so this looks
+    // through every transaction's holdings; it runs only when a
+    // request meets fast holders.  Must be called with the queue's
+    // stripe held and its gates closed.  A lock taken by compare-and-set
+    // but not yet recorded is missed, and stays fast.
+    private void migrateFast(LockQueue queue) {
+        for (int h = 0; h < this.held.length; h++) {
+            HeldStripe stripe = this.held[h];
+            synchronized (stripe) {
+                IntHashMap<Holdings> byXid = stripe.byXid;
+                int slots = byXid.slots();
+                for (int slot = 0; slot < slots; slot++) {
+                    int xid = byXid.keyAt(slot);
+                    if (xid < 0) {
+                        continue;
+                    }
+                    Holdings holdings = byXid.valueAt(slot);
+                    int mode = LockModes.NONE;
+                    while (holdings.fastRead.remove(queue)) {
+                        queue.releaseFast(LockManager.READ);
+                        mode = LockManager.READ;
+                    }
+                    while (holdings.fastIntent.remove(queue)) {
+                        queue.releaseFast(LockManager.IS);
+                        mode = (mode == LockModes.NONE) ? LockManager.IS : LockModes.supremum(mode, LockManager.IS);
+                    }
+                    if (mode == LockModes.NONE) {
+                        continue;
+                    }
+                    LockRequest held = queue.holder(xid);
+                    if (held != null) {
+                        held.lockType = LockModes.supremum(held.lockType, mode);
+                    } else {
+                        queue.grant(xid, mode);
+                        holdings.locked.add(queue);
+                    }
+                    if (queue.fastCount(LockManager.READ) + queue.fastCount(LockManager.IS) == 0) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // withdraws a request that has expired or been chosen as a deadlock
+    // victim, unless it has been granted, and settles the future of an
+    // asynchronous one; a waiting thread settles its own request once
+    // abort() has woken it up.  Must be called without any stripe held.
+    private void giveUp(LockRequest request, boolean bounded) {
+        LockQueue queue = request.queue;
+        if (queue == null) {
+            return;
+        }
+        synchronized (stripe(queue.getKey())) {
+            if (request.granted || request.queue == null) {
+                return;
+            }
+            cancel(queue, request);
+            request.queue = null;
+        }
+        if (request.future == null) {
+            return;
+        }
+        if (request.timeout != null) {
+            request.timeout.cancel(false);
+        }
+        if (request.aborted) {
+            this.stats.deadlock(queue.stats);
+            complete(request.future, false, new DeadlockException(request.xid, abortMessage()));
+        } else if (bounded) {
+            complete(request.future, false, null);
+        } else {
+            this.stats.deadlock(queue.stats);
+            complete(request.future, false,
+                     new DeadlockException(request.xid, "Sleep timeout...deadlock."));
+        }
+    }
+
+    /**
+     * Unlocks all data items locked on behalf of the transaction with
+     * id <tt>xid</tt>, handing each item to the requests waiting for
+     * it.
+     *
+     * @see LockManager#unlockAll
+     */
+    public boolean unlockAll(int xid) {
+        if (xid < 0) {
+            return false;
+        }
+
+        HeldStripe heldStripe = heldStripe(xid);
+        Holdings holdings;
+        LockRequest pending;
+        synchronized (heldStripe) {
+            holdings = heldStripe.byXid.get(xid);
+            pending = (holdings == null) ? null : holdings.waiting;
+        }
+        if (pending != null) {
+            // the transaction is going away while a request of its
+            // own still waits: withdraw it before the holdings go, so
+            // that it cannot be granted into holdings nobody releases,
+            // and wake its thread up to throw DeadlockException
+            pending.abort();
+            giveUp(pending, false);
+        }
+
+        this.waitsFor.clear(xid);
+        unwound(xid);
+        this.ranges.unlockAll(xid);
+        synchronized (heldStripe) {
+            holdings = heldStripe.byXid.remove(xid);
+        }
+        if (holdings == null) {
+            return true;
+        }
+        ArrayList<LockQueue> locked = holdings.locked;
+        int size = locked.size();
+        for (int i = 0; i < size; i++) {
+            LockQueue queue = locked.get(i);
+            synchronized (stripe(queue.getKey())) {
+                queue.release(xid);
+                grantWaiters(queue);
+                retireIfIdle(queue);
+            }
+        }
+        releaseFast(holdings.fastRead, LockManager.READ);
+        releaseFast(holdings.fastIntent, LockManager.IS);
+        holdings.clear();
+        synchronized (heldStripe) {
+            if (heldStripe.spare.size() < QueueLockManager.SPARE_LIMIT) {
+                heldStripe.spare.add(holdings);
+            }
+        }
+        return true;
+    }
+
+    // releases fast locks of mode lockType, taking the stripe monitor
+    // only if a waiter may be waiting for them or the queue may have
+    // become idle
+    private void releaseFast(ArrayList<LockQueue> queues, int lockType) {
+        int size = queues.size();
+        for (int i = 0; i < size; i++) {
+            LockQueue queue = queues.get(i);
+            if (queue.releaseFast(lockType)) {
+                synchronized (stripe(queue.getKey())) {
+                    grantWaiters(queue);
+                    retireIfIdle(queue);
+                }
+            }
+        }
+    }
+
+    // the held stripe of transaction xid
+    private HeldStripe heldStripe(int xid) {
+        return this.held[xid & (this.held.length - 1)];
+    }
+
+    // the stripe data item strData hashes to
+    private ConcurrentHashMap<String, LockQueue> stripe(String strData) {
+        if (this.stripes.length == 1) {
+            return this.stripes[0];
+        }
+        int hash = strData.hashCode();
+        hash ^= (hash >>> 16);
+        return this.stripes[(hash & 0x7fffffff) % this.stripes.length];
+    }
+
+    // withdraws a request that will not be granted; must be called
+    // with the stripe held
+    private void cancel(LockQueue queue, LockRequest request) {
+        queue.cancel(request);
+        unwait(request);
+        this.waitsFor.clear(request.xid);
+        // our request may have been holding back the ones behind it
+        grantWaiters(queue);
+        retireIfIdle(queue);
+    }
+
+    // drops the queue from its stripe if nobody holds or waits for its
+    // item any more; the next request creates a new one.  Must be
+    // called with the stripe held.
+    private void retireIfIdle(LockQueue queue) {
+        if (queue.retire()) {
+            stripe(queue.getKey()).remove(queue.getKey(), queue);
+        }
+    }
+
+    // the requests queued behind <tt>request</tt>, or all of them if it
+    // is null, now wait for <tt>xid</tt> as well; must be called with
+    // the queue's stripe held
+    private void waitBehind(LockQueue queue, LockRequest request, int xid) {
+        if (!queue.hasWaiters()) {
+            return;
+        }
+        ArrayList<LockRequest> behind = queue.behind(request);
+        int size = behind.size();
+        for (int i = 0; i < size; i++) {
+            this.waitsFor.addEdge(behind.get(i).xid, xid);
+        }
+    }
+
+    // must be called with the queue's stripe held
+    private void grantWaiters(LockQueue queue) {
+        ArrayList<LockRequest> granted = queue.grantWaiters(this.grantPolicy, this.starvationBound);
+        if (this.fastRead) {
+            queue.openGates();
+        }
+        if (granted == null) {
+            return;
+        }
+        int size = granted.size();
+        for (int i = 0; i < size; i++) {
+            LockRequest request = granted.get(i);
+            if (!request.upgrade) {
+                addHeld(request.xid, queue);
+            }
+            unwait(request);
+            this.waitsFor.clear(request.xid);
+            this.stats.waited(queue.stats, request.since);
+            this.stats.overtaken(queue.stats, request.overtaken);
+            this.stats.acquired(queue.stats);
+            if (this.grantPolicy == LockManager.GRANT_READERS || this.grantPolicy == LockManager.GRANT_BATCH) {
+                // it may have overtaken waiters, which wait for it now
+                waitBehind(queue, null, request.xid);
+            }
+            if (request.upgrade) {
+                this.stats.upgrade(queue.stats);
+            }
+            request.grant();
+            if (request.future != null) {
+                if (request.timeout != null) {
+                    request.timeout.cancel(false);
+                }
+                complete(request.future, true, null);
+            }
+        }
+    }
+
+    // forgets that request.xid is waiting on request
+    private void unwait(LockRequest request) {
+        HeldStripe stripe = heldStripe(request.xid);
+        synchronized (stripe) {
+            Holdings holdings = stripe.byXid.get(request.xid);
+            if (holdings != null && holdings.waiting == request) {
+                holdings.waiting = null;
+            }
+        }
+    }
+
+    // Looks in the transaction's own holdings first, so that checking
+    // for a covering table lock does not take the table's stripe
+    // monitor unless the transaction holds an ordinary lock on it.
+    int heldMode(int xid, String strData) {
+        ConcurrentHashMap<String, LockQueue> stripe = stripe(strData);
+        LockQueue queue = stripe.get(strData);
+        if (queue == null) {
+            return LockModes.NONE;
+        }
+        int mode = LockModes.NONE;
+        boolean locked;
+        HeldStripe heldStripe = heldStripe(xid);
+        synchronized (heldStripe) {
+            Holdings holdings = heldStripe.byXid.get(xid);
+            if (holdings == null) {
+                return LockModes.NONE;
+            }
+            locked = holdings.locked.contains(queue);
+            if (holdings.fastRead.contains(queue)) {
+                mode = LockManager.READ;
+            }
+            if (holdings.fastIntent.contains(queue)) {
+                mode = (mode == LockModes.NONE) ? LockManager.IS : LockModes.supremum(mode, LockManager.IS);
+            }
+        }
+        if (locked) {
+            synchronized (stripe) {
+                LockRequest held = queue.holder(xid);
+                if (held != null) {
+                    mode = (mode == LockModes.NONE) ? held.lockType : LockModes.supremum(mode, held.lockType);
+                }
+            }
+        }
+        return mode;
+    }
+
+    int locksHeld(int xid) {
+        HeldStripe stripe = heldStripe(xid);
+        synchronized (stripe) {
+            Holdings holdings = stripe.byXid.get(xid);
+            return (holdings == null) ? 0 : holdings.size();
+        }
+    }
+
+    ArrayList<Integer> holders(String strData, int lockType) {
+        ConcurrentHashMap<String, LockQueue> stripe = stripe(strData);
+        synchronized (stripe) {
+            LockQueue queue = stripe.get(strData);
+            return (queue == null) ? new ArrayList<Integer>() : queue.holders(lockType);
+        }
+    }
+
+    boolean isWaiting(int xid) {
+        HeldStripe stripe = heldStripe(xid);
+        synchronized (stripe) {
+            Holdings holdings = stripe.byXid.get(xid);
+            return holdings != null && holdings.waiting != null;
+        }
+    }
+
+    void abortWaiter(int xid) {
+        LockRequest request;
+        HeldStripe stripe = heldStripe(xid);
+        synchronized (stripe) {
+            Holdings holdings = stripe.byXid.get(xid);
+            request = (holdings == null) ? null : holdings.waiting;
+        }
+        if (request != null) {
+            request.abort();
+            if (request.future != null) {
+                // called with a stripe held; withdraw it from elsewhere
+                final LockRequest victim = request;
+                this.waitExecutor.execute(new Runnable() {
+                    public void run() {
+                        giveUp(victim, false);
+                    }
+                });
+            }
+        }
+    }
+
+    private void addHeld(int xid, LockQueue queue) {
+        HeldStripe stripe = heldStripe(xid);
+        synchronized (stripe) {
+            stripe.holdings(xid).locked.add(queue);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Key-range locks on the rows of a table, against phantoms.  A scan
+    locks the range of row keys it reads; a row written by another
+    transaction inside the range, including a row inserted after the
+    scan, conflicts with it.
+
+    Each table that has been range locked gets an index, ordered by row
+    key, of its locked ranges and of the rows being written.  The
+    conflicts are turned into waits on ordinary locks, so that they go
+    through the lock queues and deadlock handling like any other: a
+    range is also a data item of its own, which its scanners lock in
+    READ mode, and a writer locks in WRITE mode every range of another
+    transaction that holds its row.  A scanner in turn locks every row
+    already being written inside its range.  A writer records its row
+    before it looks for ranges and a scanner records its range before
+    it looks for rows, so of two that meet at least one waits for the
+    other.
+
+    Rows written before a table got its index are not in it.  The
+    transactions that held the table in a mode conflicting with S when
+    its index was opened are recorded, and until all of them have
+    finished, range locks on the table take an S lock on the whole
+    table instead.  Tables that are never range locked cost writers one
+    volatile read.
+*/
+
+class RangeLocks
+{
+    // a locked range of row keys, lo to hi inclusive
+    private static class Range
+    {
+        int xid;
+        String lo;
+        String hi;
+        String item;
+
+        Range(int xid, String lo, String hi, String item) {
+            this.xid = xid;
+            this.lo = lo;
+            this.hi = hi;
+            this.item = item;
+        }
+    }
+
+    // the ranges and written rows of one table; guarded by itself
+    private static class Index
+    {
+        // lo -> the ranges starting there
+        TreeMap<String, ArrayList<Range>> ranges = new TreeMap<String, ArrayList<Range>>();
+        // row -> the transactions writing it
+        TreeMap<String, ArrayList<Integer>> written = new TreeMap<String, ArrayList<Integer>>();
+        // xid -> its ranges, and the rows it writes
+        IntHashMap<ArrayList<Range>> rangesOf = new IntHashMap<ArrayList<Range>>();
+        IntHashMap<ArrayList<String>> rowsOf = new IntHashMap<ArrayList<String>>();
+        // the transactions writing the table when the index was opened,
+        // whose rows may be missing from it; null until they are known
+        ArrayList<Integer> unindexed;
+        // whether they have all finished
+        volatile boolean complete = false;
+
+        void release(int xid) {
+            ArrayList<Range> ranges = this.rangesOf.remove(xid);
+            if (ranges != null) {
+                for (Range range : ranges) {
+                    ArrayList<Range> at = this.ranges.get(range.lo);
+                    at.remove(range);
+                    if (at.isEmpty()) {
+                        this.ranges.remove(range.lo);
+                    }
+                }
+            }
+            ArrayList<String> rows = this.rowsOf.remove(xid);
+            if (rows != null) {
+                for (String row : rows) {
+                    ArrayList<Integer> writers = this.written.get(row);
+                    writers.remove(Integer.valueOf(xid));
+                    if (writers.isEmpty()) {
+                        this.written.remove(row);
+                    }
+                }
+            }
+        }
+    }
+
+    // table -> its index
+    private final ConcurrentHashMap<String, Index> tables = new ConcurrentHashMap<String, Index>();
+    // xid -> the indexes it has entries in; guarded by itself
+    private final IntHashMap<ArrayList<Index>> touched = new IntHashMap<ArrayList<Index>>();
+    // whether any table has an index, readable without a monitor
+    private volatile boolean any = false;
+
+    // the data item standing for range lo..hi of table
+    static String item(String table, String lo, String hi) {
+        return table + '\0' + lo + '\0' + hi;
+    }
+
+    // gives table an index, returning true if it had none; the caller
+    // then records the transactions already writing the table with
+    // opened()
+    boolean open(String table) {
+        if (this.tables.get(table) != null) {
+            return false;
+        }
+        boolean opened = this.tables.putIfAbsent(table, new Index()) == null;
+        this.any = true;
+        return opened;
+    }
+
+    // records the transactions writing table when its index was opened
+    void opened(String table, ArrayList<Integer> writers) {
+        Index index = this.tables.get(table);
+        synchronized (index) {
+            index.unindexed = writers;
+            index.complete = writers.isEmpty();
+        }
+    }
+
+    // Returns the transactions writing table when its index was opened
+    // that have not been seen to finish, or null if they are not known
+    // yet; empty once the index holds every row being written.
+    ArrayList<Integer> unindexed(String table) {
+        Index index = this.tables.get(table);
+        if (index.complete) {
+            return new ArrayList<Integer>(0);
+        }
+        synchronized (index) {
+            return (index.unindexed == null) ? null : new ArrayList<Integer>(index.unindexed);
+        }
+    }
+
+    // notes that xid, one of the transactions returned by unindexed(),
+    // has finished
+    void indexed(String table, int xid) {
+        Index index = this.tables.get(table);
+        synchronized (index) {
+            index.unindexed.remove(Integer.valueOf(xid));
+            index.complete = index.unindexed.isEmpty();
+        }
+    }
+
+    // Records range lo..hi of xid in the index of table, and returns
+    // the rows other transactions are writing inside it.
+    ArrayList<String> addRange(int xid, String table, String lo, String hi) {
+        Index index = this.tables.get(table);
+        Range range = new Range(xid, lo, hi, item(table, lo, hi));
+        ArrayList<String> rows = new ArrayList<String>();
+        synchronized (index) {
+            ArrayList<Range> at = index.ranges.get(lo);
+            if (at == null) {
+                at = new ArrayList<Range>(2);
+                index.ranges.put(lo, at);
+            }
+            at.add(range);
+            add(index.rangesOf, xid, range);
+            for (Map.Entry<String, ArrayList<Integer>> entry
+                     : index.written.subMap(lo, true, hi, true).entrySet()) {
+                ArrayList<Integer> writers = entry.getValue();
+                if (writers.size() > 1 || writers.get(0) != xid) {
+                    rows.add(entry.getKey());
+                }
+            }
+        }
+        touch(xid, index);
+        return rows;
+    }
+
+    // Records that xid writes row of table, if the table has an index,
+    // and returns the data items of the ranges of other transactions
+    // holding the row, or null if there are none.
+    ArrayList<String> written(int xid, String table, String row) {
+        if (!this.any) {
+            return null;
+        }
+        Index index = this.tables.get(table);
+        if (index == null) {
+            return null;
+        }
+        ArrayList<String> items = null;
+        boolean first;
+        synchronized (index) {
+            ArrayList<Integer> writers = index.written.get(row);
+            if (writers == null) {
+                writers = new ArrayList<Integer>(2);
+                index.written.put(row, writers);
+            }
+            first = !writers.contains(xid);
+            if (first) {
+                writers.add(xid);
+                add(index.rowsOf, xid, row);
+            }
+            // the ranges starting at or before row that reach it
+            for (ArrayList<Range> at : index.ranges.headMap(row, true).values()) {
+                for (Range range : at) {
+                    if (range.xid != xid && range.hi.compareTo(row) >= 0) {
+                        if (items == null) {
+                            items = new ArrayList<String>(2);
+                        }
+                        if (!items.contains(range.item)) {
+                            items.add(range.item);
+                        }
+                    }
+                }
+            }
+        }
+        if (first) {
+            touch(xid, index);
+        }
+        return items;
+    }
+
+    // forgets the ranges and written rows of xid
+    void unlockAll(int xid) {
+        if (!this.any) {
+            return;
+        }
+        ArrayList<Index> indexes;
+        synchronized (this.touched) {
+            indexes = this.touched.remove(xid);
+        }
+        if (indexes == null) {
+            return;
+        }
+        for (Index index : indexes) {
+            synchronized (index) {
+                index.release(xid);
+            }
+        }
+    }
+
+    private void touch(int xid, Index index) {
+        synchronized (this.touched) {
+            ArrayList<Index> indexes = this.touched.get(xid);
+            if (indexes == null) {
+                indexes = new ArrayList<Index>(2);
+                this.touched.put(xid, indexes);
+            }
+            if (!indexes.contains(index)) {
+                indexes.add(index);
+            }
+        }
+    }
+
+    private static <T> void add(IntHashMap<ArrayList<T>> map, int xid, T value) {
+        ArrayList<T> values = map.get(xid);
+        if (values == null) {
+            values = new ArrayList<T>(4);
+            map.put(xid, values);
+        }
+        values.add(value);
+    }
+}
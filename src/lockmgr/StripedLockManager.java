@@ -0,0 +1,21 @@
+package lockmgr;
+
+/**
+ * A QueueLockManager whose lock queues are split over N independent
+ * stripes, chosen by the hash of the data item.  Requests for items in
+ * different stripes never contend for the same monitor, so conflict
+ * checks on unrelated items proceed in parallel.
+ * <p>
+ * The number of stripes is taken from -DlockStripes, and defaults to
+ * four per available processor.
+ */
+public class StripedLockManager extends QueueLockManager
+{
+    public StripedLockManager() {
+        this(Integer.getInteger("lockStripes", 4 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    public StripedLockManager(int nStripes) {
+        super(nStripes);
+    }
+}
@@ -121,6 +121,29 @@ public class TPHashTable
         return null;
     }
 
+    // calls visitor on each entry whose key() is <tt>key</tt>, in the
+    // order they were added, without copying them, until visit()
+    // returns false.  Returns true if every entry was visited.  The
+    // entries must hash to their key(), as DataObj and XObj do, and
+    // visit() must not change the table.
+    synchronized boolean forEachMatching(int key, XObjVisitor visitor)
+    {
+        int hashSlot = (key % this.iSize);
+        if ( hashSlot < 0 ) {
+            hashSlot = -hashSlot;
+        }
+        Vector vectSlot = (Vector) vect.elementAt( hashSlot );
+
+        int size = vectSlot.size();
+        for ( int i = 0; i < size; i++ ) {
+            XObj xobj = (XObj) vectSlot.elementAt(i);
+            if ( xobj.key() == key && !visitor.visit(xobj) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void printStatus(String msg, int hashSlot, XObj xobj) {
         System.out.println( this.getClass() + "::" + msg + "(slot" + hashSlot + ")::" + xobj.toString() );
     }
@@ -19,9 +19,9 @@ public class TrxnObj extends XObj
     
     TrxnObj(int xid, String strData, int lockType) {
         super(xid);
-        this.strData = new String(strData);
+        this.strData = strData;
 
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (LockModes.isValid(lockType)) {
             this.lockType = lockType;
         } else {
             this.lockType = -1;    // invalid lock type.
@@ -56,16 +56,15 @@ public class TrxnObj extends XObj
     }
     
     public void setDataName(String strData) {
-        this.strData = new String(strData);
+        this.strData = strData;
     }
     
     public String getDataName() {
-        String strData = new String(this.strData);
-        return strData;
+        return this.strData;
     }
     
     public void setLockType(int lockType) {
-        if ((lockType == TrxnObj.READ) || (lockType == TrxnObj.WRITE)) {
+        if (LockModes.isValid(lockType)) {
             this.lockType = lockType;
         }
     }
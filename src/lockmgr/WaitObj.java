@@ -1,8 +1,23 @@
 package lockmgr;
 
+/*
+    A transaction waiting for a lock in the waitTable.  The waiting
+    thread blocks on the WaitObj itself, not on its Thread, until an
+    unlock or a deadlock signals it; a signal that comes before the
+    thread starts waiting is not lost.  One WaitObj stands for a lock
+    request from its first wait until it is granted or given up, and
+    carries the request's place in the DeadlineQueue.
+*/
+
 public class WaitObj extends DataObj
 {
-    protected Thread thread = null;
+    private boolean signalled = false;
+    private boolean timedOut = false;    // the deadlock timeout has passed
+    // the DeadlineQueue links, guarded by the queue
+    long deadline;
+    WaitObj prevDeadline;
+    WaitObj nextDeadline;
+    boolean timed = false;
     
     // The data members inherited are 
     // XObj:: protected int xid;
@@ -11,20 +26,41 @@ public class WaitObj extends DataObj
     
     WaitObj() {
         super();
-        thread = null;
     }
     
     WaitObj(int xid, String strData, int lockType) {
         super(xid, strData, lockType);
-        thread = null;
     }
     
-    WaitObj(int xid, String strData, int lockType, Thread thread) {
-        super(xid, strData, lockType);
-        this.thread = thread;
+    // wakes the waiting thread up
+    synchronized void signal() {
+        this.signalled = true;
+        notify();
     }
-    
-    public Thread getThread() {
-        return this.thread;
+
+    // the deadlock timeout has passed; wakes the waiting thread up
+    synchronized void expire() {
+        this.timedOut = true;
+        signal();
+    }
+
+    // readies the WaitObj for another wait, before it is registered in
+    // the waitTable again
+    synchronized void rearm() {
+        this.signalled = false;
+    }
+
+    // must be called with the WaitObj's monitor held
+    boolean isTimedOut() {
+        return this.timedOut;
+    }
+
+    // blocks until signalled or <tt>millis</tt> have passed, 0 waiting
+    // for the signal alone; must be called with the WaitObj's monitor
+    // held
+    void await(long millis) throws InterruptedException {
+        if (!this.signalled) {
+            wait(millis);
+        }
     }
 }
@@ -0,0 +1,96 @@
+package lockmgr;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/*
+    Waits-for graph used to detect deadlocks as soon as they form.
+    There is an edge from a waiting transaction to every transaction
+    holding (or queued ahead for) a lock it is waiting for.  Edges are
+    maintained incrementally: a transaction's out-edges are set when it
+    starts to wait and dropped when it is granted, times out or aborts.
+*/
+
+class WaitsForGraph
+{
+    private IntHashMap<HashSet<Integer>> edges = new IntHashMap<HashSet<Integer>>();
+    // the number of waiting transactions, readable without the monitor
+    private volatile int waiters = 0;
+
+    // <tt>xid</tt> now waits for every transaction in <tt>blockers</tt>
+    public synchronized void waitFor(int xid, ArrayList<Integer> blockers) {
+        HashSet<Integer> out = this.edges.get(xid);
+        if (out == null) {
+            out = new HashSet<Integer>();
+            this.edges.put(xid, out);
+            this.waiters = this.edges.size();
+        } else {
+            out.clear();
+        }
+        out.addAll(blockers);
+        out.remove(xid);
+    }
+
+    public synchronized void addEdge(int xid, int blocker) {
+        if (xid == blocker) {
+            return;
+        }
+        HashSet<Integer> out = this.edges.get(xid);
+        if (out != null) {
+            out.add(blocker);
+        }
+    }
+
+    // <tt>xid</tt> no longer waits for anything.  Takes no lock while
+    // nobody waits, the common case on the lock and unlock paths.
+    public void clear(int xid) {
+        if (this.waiters == 0) {
+            return;
+        }
+        synchronized (this) {
+            this.edges.remove(xid);
+            this.waiters = this.edges.size();
+        }
+    }
+
+    public synchronized boolean isWaiting(int xid) {
+        return this.edges.containsKey(xid);
+    }
+
+    /**
+     * Returns the transactions on a cycle through <tt>xid</tt>, starting
+     * with <tt>xid</tt>, or null if <tt>xid</tt> is not deadlocked.
+     */
+    public synchronized ArrayList<Integer> findCycle(int xid) {
+        ArrayList<Integer> path = new ArrayList<Integer>();
+        path.add(xid);
+        if (search(xid, xid, path, new HashSet<Integer>())) {
+            return path;
+        }
+        return null;
+    }
+
+    // depth-first search for a path from <tt>from</tt> back to <tt>target</tt>
+    private boolean search(int from, int target, ArrayList<Integer> path, HashSet<Integer> visited) {
+        HashSet<Integer> out = this.edges.get(from);
+        if (out == null) {
+            return false;
+        }
+        Iterator<Integer> it = out.iterator();
+        while (it.hasNext()) {
+            int next = it.next();
+            if (next == target) {
+                return true;
+            }
+            if (visited.add(next)) {
+                path.add(next);
+                if (search(next, target, path, visited)) {
+                    return true;
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,12 @@
+package lockmgr;
+
+/*
+    Callback for walking the entries of a lock hash table in place; see
+    TPHashTable.forEachMatching and LockHashTable.forEachMatching.
+*/
+
+interface XObjVisitor
+{
+    // called for each matching entry; returns false to stop the walk
+    boolean visit(XObj xobj);
+}
@@ -11,8 +11,8 @@ import java.lang.reflect.*;
  *
  * Test script syntax: #threads line*
  *
- * line: xid launch TM|RMFlights|RMRooms|RMCars|RMCustomers|WC|ALL call func
- * param* return val? except exctype? sleep millisec exit
+ * line: xid launch TM|RMFlights|RMRooms|RMCars|RMCustomers|WC|ALL -Dname=value*
+ * call func param* return val? except exctype? sleep millisec exit
  */
 
 public class Client {
@@ -31,7 +31,7 @@ public class Client {
 	private static BufferedReader scriptReader = new BufferedReader(new InputStreamReader(System.in));
 
 	public static void main(String args[]) {
-		launch("ALL");
+		launch("ALL", "");
 
 		readNextLine();
 		int numThreads = Integer.parseInt(currentLine);
@@ -60,7 +60,8 @@ public class Client {
 		}
 	}
 
-	private static void launch(String who) {
+	// options are passed to the JVMs launched, e.g. -Dconcurrency=occ
+	private static void launch(String who, String options) {
 		String rmiPort = System.getProperty("rmiPort");
 		String[] rmiNames = new String[] { TransactionManager.RMIName, ResourceManager.RMINameFlights,
 				ResourceManager.RMINameRooms, ResourceManager.RMINameCars, ResourceManager.RMINameCustomers,
@@ -73,7 +74,7 @@ public class Client {
 				try {
 					Runtime.getRuntime()
 							.exec(new String[] { "sh", "-c",
-									"java -classpath .. -DrmiPort=" + rmiPort + " -DrmiName=" + rmiNames[i]
+									"java -classpath .. -DrmiPort=" + rmiPort + " -DrmiName=" + rmiNames[i] + options
 											+ " -Djava.security.policy=./security-policy transaction." + classNames[i]
 											+ " >>" + LOGDIR + rmiNames[i] + LOGSUFFIX + " 2>&1" });
 				} catch (IOException e) {
@@ -165,7 +166,12 @@ public class Client {
 
 				String action = st.nextToken();
 				if (action.equals("launch")) {
-					launch(st.nextToken());
+					String who = st.nextToken();
+					String options = "";
+					while (st.hasMoreTokens()) {
+						options += " " + st.nextToken();
+					}
+					launch(who, options);
 				} else if (action.equals("sleep")) {
 					try {
 						Thread.sleep(Long.parseLong(st.nextToken()));
@@ -222,7 +228,7 @@ public class Client {
 								.println("[" + id + "] " + methodName + " exceptioned: " + retExc.getClass().getName());
 					}
 
-					if (methodName.equals("start") && retVal != null) {
+					if ((methodName.equals("start") || methodName.equals("startReadOnly")) && retVal != null) {
 						xid = (Integer) retVal;
 						System.out.println("[" + id + "] xid set to " + xid.intValue());
 					}
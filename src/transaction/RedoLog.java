@@ -0,0 +1,258 @@
+package transaction;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+/*
+    The redo log of an RM: an append-only file of the rows transactions
+    changed, so that a commit costs one small append instead of
+    rewriting the table.  Prepare appends the after-images of the rows
+    the transaction changed, commit a record naming the transaction;
+    both are forced to disk before they return.  A transaction whose
+    prepare record is not followed by a commit record did not commit.
+
+    Every record is framed with its length and a CRC32, so that a record
+    torn by a crash ends the log instead of being replayed.  Applying an
+    after-image twice does no harm, so the log can be replayed onto any
+    checkpoint taken after it was started.  Once the log has grown past
+    -DcheckpointBytes the RM copies its committed table and rotates the
+    log under the same lock: the log becomes the old segment, and a new
+    one starts with the records of the transactions still prepared.  The
+    copy is written in the background, after which the old segment is
+    deleted; until then recovery replays the old segment and the new one
+    onto the previous checkpoint.
+*/
+
+class RedoLog {
+
+    // the after-images of the rows a transaction changed
+    static class Record implements Serializable {
+        private static final long serialVersionUID = 1L;
+        int xid;
+        String[] tables;
+        String[] keys;
+        Object[] rows; // null where the row was deleted
+
+        Record(int xid, int size) {
+            this.xid = xid;
+            tables = new String[size];
+            keys = new String[size];
+            rows = new Object[size];
+        }
+    }
+
+    private static final byte PREPARE = 1;
+    private static final byte COMMIT = 2;
+
+    private File file;
+    // the log before the last rotation, kept until the checkpoint taken
+    // at the rotation is on disk
+    private File old;
+    private boolean checkpointing;
+    private FileOutputStream out;
+    private long size;
+    // prepared transactions not yet applied -> their prepare record,
+    // and those of them whose commit record has been written
+    private HashMap<Integer, byte[]> prepared = new HashMap<Integer, byte[]>();
+    private HashSet<Integer> committed = new HashSet<Integer>();
+
+    RedoLog(String path) {
+        file = new File(path);
+        old = new File(path + ".old");
+    }
+
+    // Reads the log left by the last run, the old segment first, and
+    // returns the records of the transactions that committed, in commit
+    // order.  Stops reading a segment at its first torn or corrupt record.
+    ArrayList<Record> recover() throws IOException, ClassNotFoundException {
+        ArrayList<Record> records = new ArrayList<Record>();
+        HashMap<Integer, Record> pending = new HashMap<Integer, Record>();
+        read(old, pending, records);
+        read(file, pending, records);
+        return records;
+    }
+
+    private static void read(File segment, HashMap<Integer, Record> pending, ArrayList<Record> records)
+            throws IOException, ClassNotFoundException {
+        if (!segment.exists())
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        try {
+            while (true) {
+                byte[] body;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length < 5)
+                        break;
+                    body = new byte[length];
+                    in.readFully(body);
+                    if (crc(body) != crc)
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                int xid = record.readInt();
+                if (type == PREPARE) {
+                    ObjectInputStream ois = new ObjectInputStream(record);
+                    pending.put(xid, (Record) ois.readObject());
+                } else if (type == COMMIT && pending.containsKey(xid)) {
+                    records.add(pending.remove(xid));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Forces the after-images of a transaction to disk.
+    synchronized void prepare(Record record) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(payload);
+        oos.writeObject(record);
+        oos.close();
+        byte[] frame = frame(PREPARE, record.xid, payload.toByteArray());
+        append(frame);
+        prepared.put(record.xid, frame);
+        committed.remove(record.xid);
+    }
+
+    // Forces the commit of a prepared transaction to disk; does nothing
+    // if it changed nothing here.
+    synchronized void commit(int xid) throws IOException {
+        if (!prepared.containsKey(xid))
+            return;
+        append(frame(COMMIT, xid, new byte[0]));
+        committed.add(xid);
+    }
+
+    // Drops a transaction once its commit has been applied to the
+    // committed table, or it has aborted.
+    synchronized void forget(int xid) {
+        prepared.remove(xid);
+        committed.remove(xid);
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    // Starts a new log holding only the records of the transactions
+    // prepared but not yet applied, and drops the old segment; called
+    // once a checkpoint of the committed table is on disk.
+    synchronized void restart() throws IOException {
+        if (out != null)
+            out.close();
+        out = null;
+        start();
+        Files.deleteIfExists(old.toPath());
+    }
+
+    // Rotates the log for a checkpoint of the committed table as of now,
+    // unless one is being written already; the caller holds the lock
+    // under which transactions are applied, so that the new segment
+    // holds the records of every transaction the copy misses.
+    synchronized boolean rotate() throws IOException {
+        if (checkpointing)
+            return false;
+        if (out != null)
+            out.close();
+        out = null;
+        if (old.exists()) {
+            // the last checkpoint failed: the old segment is still needed
+            FileOutputStream fos = new FileOutputStream(old, true);
+            try {
+                Files.copy(file.toPath(), fos);
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            Files.delete(file.toPath());
+        } else if (file.exists()) {
+            Files.move(file.toPath(), old.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        start();
+        checkpointing = true;
+        return true;
+    }
+
+    // Ends the checkpoint begun by rotate(); the old segment is dropped
+    // if the checkpoint was written.
+    synchronized void checkpointed(boolean written) throws IOException {
+        checkpointing = false;
+        if (written)
+            Files.deleteIfExists(old.toPath());
+    }
+
+    // writes a new segment holding the transactions prepared but not
+    // yet applied, and appends from there on
+    private void start() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp, false);
+        long written = 0;
+        for (Integer xid : prepared.keySet()) {
+            byte[] frame = prepared.get(xid);
+            fos.write(frame);
+            written += frame.length;
+            if (committed.contains(xid)) {
+                frame = frame(COMMIT, xid, new byte[0]);
+                fos.write(frame);
+                written += frame.length;
+            }
+        }
+        fos.getFD().sync();
+        fos.close();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        out = new FileOutputStream(file, true);
+        size = written;
+    }
+
+    private void append(byte[] frame) throws IOException {
+        if (out == null)
+            out = new FileOutputStream(file, true);
+        out.write(frame);
+        out.getFD().sync();
+        size += frame.length;
+    }
+
+    private static byte[] frame(byte type, int xid, byte[] payload) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(5 + payload.length);
+        DataOutputStream dos = new DataOutputStream(body);
+        dos.writeByte(type);
+        dos.writeInt(xid);
+        dos.write(payload);
+        byte[] bytes = body.toByteArray();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(8 + bytes.length);
+        dos = new DataOutputStream(frame);
+        dos.writeInt(bytes.length);
+        dos.writeInt(crc(bytes));
+        dos.write(bytes);
+        return frame.toByteArray();
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+}
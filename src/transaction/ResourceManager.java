@@ -2,7 +2,10 @@ package transaction;
 
 import java.rmi.*;
 import java.util.ArrayList;
+import java.util.List;
 
+import lockmgr.KeyStats;
+import lockmgr.LockEvent;
 import transaction.tables.ResvPair;
 
 /**
@@ -32,16 +35,74 @@ public interface ResourceManager extends Remote {
         public boolean lm_unlockAll(int xid) throws RemoteException;
 
         /**
-         * Commit transaction.
+         * Limit the total time transaction xid may spend waiting for
+         * locks on this RM.  A lock still not granted when the budget
+         * runs out aborts the operation with TransactionAbortedException
+         * instead of waiting for the deadlock timeout.  The budget is
+         * dropped when the transaction's locks are released.
+         *
+         * @param xid id of the transaction.
+         * @param millis total lock wait allowed; negative removes the limit.
+         *
+         * @throws RemoteException on communications failure.
+         */
+        public void setLockWaitBudget(int xid, long millis) throws RemoteException;
+
+        /**
+         * Return the lock statistics of the n most contended data items
+         * of this RM, most conflicts first.  A row is keyed by its table
+         * name followed by the row, e.g. FLIGHTS347.  Empty unless the
+         * RM runs with -DlockStats=on or -DlockStatsJmx=true.
+         *
+         * @param n how many data items to return.
+         * @return the statistics of up to n data items.
+         *
+         * @throws RemoteException on communications failure.
+         */
+        public ArrayList<KeyStats> lm_hotKeys(int n) throws RemoteException;
+
+        /**
+         * Trace the lock requests of transaction xid on this RM, whether
+         * or not it is sampled by -DlockTrace, or stop doing so.  The
+         * trace is stopped when the transaction's locks are released;
+         * its events stay retrievable through lm_trace.
+         *
+         * @param xid id of the transaction.
+         * @param on whether to trace it.
+         *
+         * @throws RemoteException on communications failure.
+         */
+        public void setLockTrace(int xid, boolean on) throws RemoteException;
+
+        /**
+         * Return the traced lock requests of transaction xid on this RM
+         * that are still in the trace buffer, oldest first: the item and
+         * mode, the wait, the transactions waited for, and whether the
+         * lock was granted, refused or ended in a deadlock.
+         *
+         * @param xid id of the transaction.
+         * @return its lock events, empty if it was not traced.
+         *
+         * @throws RemoteException on communications failure.
+         */
+        public ArrayList<LockEvent> lm_trace(int xid) throws RemoteException;
+
+        /**
+         * Commit transaction.  Its updates become visible to snapshots
+         * taken at or after timestamp; the RM may drop the versions no
+         * snapshot at or after horizon can see.
          *
          * @param xid id of transaction to be committed.
+         * @param timestamp commit timestamp, -1 for a read-only transaction.
+         * @param horizon the oldest snapshot a read-only transaction can have.
          * @return true on success, false on failure.
          *
          * @throws RemoteException             on communications failure.
          * @throws TransactionAbortedException if transaction was aborted.
          * @throws InvalidTransactionException if transaction id is invalid.
          */
-        public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+        public boolean commit(int xid, long timestamp, long horizon)
+                        throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
         /**
          * Abort transaction.
@@ -218,6 +279,23 @@ public interface ResourceManager extends Remote {
         public int queryCarsPrice(int xid, String location)
                         throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
+        /**
+         * Return the number of empty seats on this flight, locking the
+         * flight in UPDATE mode for a reservation that follows.  Unlike
+         * queryFlight, a later reservation by the same transaction then
+         * cannot deadlock with another one reserving the same flight.
+         */
+        public int queryFlightForUpdate(int xid, String flightNum)
+                        throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
+        /** Return the number of rooms available at a location, locked for update. */
+        public int queryRoomsForUpdate(int xid, String location)
+                        throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
+        /** Return the number of cars available at a location, locked for update. */
+        public int queryCarsForUpdate(int xid, String location)
+                        throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
         public ArrayList<ResvPair> queryCustomerResv(int xid, String custName)
                         throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
@@ -239,6 +317,25 @@ public interface ResourceManager extends Remote {
         public boolean reserveFlight(int xid, String custName, String flightNum)
                         throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
+        /**
+         * Reserve a seat on each of a list of flights, in one call.  The
+         * flights are locked together, in the lock manager's canonical
+         * order, and are only reserved if every one has a seat left; a
+         * flight listed twice needs two.
+         *
+         * @param xid           id of transaction.
+         * @param custName      name of customer.
+         * @param flightNumList list of flight numbers.
+         * @return true on success, false if a flight is missing or full,
+         *         or a flight number is not a String.
+         *
+         * @throws RemoteException             on communications failure.
+         * @throws TransactionAbortedException if transaction was aborted.
+         * @throws InvalidTransactionException if transaction id is invalid.
+         */
+        public boolean reserveFlights(int xid, String custName, List<?> flightNumList)
+                        throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
         /** Reserve a car for this customer at the specified location. */
         public boolean reserveCar(int xid, String custName, String location)
                         throws RemoteException, TransactionAbortedException, InvalidTransactionException;
@@ -250,6 +347,13 @@ public interface ResourceManager extends Remote {
         public boolean reserveCustomer(int xid, String custName, int resvType, String resvKey)
                         throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
+        /**
+         * Record a list of reservations of one type for this customer, in
+         * one call: all of them, or none if any key is not a String.
+         */
+        public boolean reserveCustomer(int xid, String custName, int resvType, List<?> resvKeys)
+                        throws RemoteException, TransactionAbortedException, InvalidTransactionException;
+
         //////////
         // TECHNICAL/TESTING INTERFACE
         //////////
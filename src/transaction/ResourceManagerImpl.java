@@ -6,33 +6,16 @@ import transaction.tables.*;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.rmi.*;
 import java.util.HashMap;
 import java.util.ArrayList;
-
-class TableModified implements Serializable {
-
-    private static final long serialVersionUID = 1L;
-    private String tableType;
-    private String tableKey;
-
-    public TableModified(String tableType, String tableKey) {
-        this.tableType = tableType;
-        this.tableKey = tableKey;
-    }
-
-    public String getTableType() {
-        return tableType;
-    }
-
-    public String getTableKey() {
-        return tableKey;
-    }
-
-}
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Resource Manager for the Distributed Travel Reservation System.
@@ -54,8 +37,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     private static final String KeyCar = "CARS";
     private static final String KeyReservation = "RESERVATIONS";
 
-    // shadowing
-    // non-active
+    // the committed tables, as of the last checkpoint
     private static final String FLIGHTS_DB = DATA_DIR + "/" + KeyFlight + ".db";
     private static final String HOTELS_DB = DATA_DIR + "/" + KeyHotel + ".db";
     private static final String CARS_DB = DATA_DIR + "/" + KeyCar + ".db";
@@ -67,30 +49,43 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     private ReservationsTable reservationsTable;
 
     // active
-    private static final String A_FLIGHTS_DB = DATA_DIR + "/" + KeyFlight + ".adb";
-    private static final String A_HOTELS_DB = DATA_DIR + "/" + KeyHotel + ".adb";
-    private static final String A_CARS_DB = DATA_DIR + "/" + KeyCar + ".adb";
-    private static final String A_RESERVATIONS_DB = DATA_DIR + "/" + KeyReservation + ".adb";
-
     private FlightsTable aFlightsTable;
     private HotelsTable aHotelsTable;
     private CarsTable aCarsTable;
     private ReservationsTable aReservationsTable;
 
-    // prepare
-    private static final String P_FLIGHTS_DB = DATA_DIR + "/" + KeyFlight + ".pdb";
-    private static final String P_HOTELS_DB = DATA_DIR + "/" + KeyHotel + ".pdb";
-    private static final String P_CARS_DB = DATA_DIR + "/" + KeyCar + ".pdb";
-    private static final String P_RESERVATIONS_DB = DATA_DIR + "/" + KeyReservation + ".pdb";
-
-    private static final String P_FLIGHTS_RECOVER = DATA_DIR + "/" + KeyFlight + ".rcv";
-    private static final String P_HOTELS_RECOVER = DATA_DIR + "/" + KeyHotel + ".rcv";
-    private static final String P_CARS_RECOVER = DATA_DIR + "/" + KeyCar + ".rcv";
-    private static final String P_RESERVATIONS_RECOVER = DATA_DIR + "/" + KeyReservation + ".rcv";
+    // the commits since the last checkpoint; -DcheckpointBytes is how
+    // long it may grow before the next one
+    private RedoLog redoLog;
+    private static final long CHECKPOINT_BYTES = Long.getLong("checkpointBytes", 64L << 20);
 
-    private static LockManager lm;
+    private LockManager lm;
     private HashMap<Integer, ArrayList<TableModified>> activeTransactions;
     private HashMap<Integer, Boolean> preparedTransactions;
+    // lock wait left to each transaction, in ms; -DlockWaitBudget sets
+    // the budget of transactions that were not given one
+    private HashMap<Integer, Long> lockWaitBudgets = new HashMap<Integer, Long>();
+    private static final long DEFAULT_LOCK_WAIT_BUDGET = Long.getLong("lockWaitBudget", -1);
+    // read-only transaction -> the timestamp of the snapshot it reads
+    private HashMap<Integer, Long> snapshots = new HashMap<Integer, Long>();
+    // the committed versions snapshots may still read; its monitor also
+    // guards the committed tables
+    private Versions versions = new Versions();
+    // Optimistic concurrency control instead of locking, set for each RM
+    // with -Dconcurrency.<rmiName>=occ, or for all with -Dconcurrency=occ.
+    // Suits tables with little contention, such as thousands of hotels.
+    private boolean occ;
+    // under OCC: transaction -> its workspace
+    private HashMap<Integer, Workspace> workspaces = new HashMap<Integer, Workspace>();
+    // under OCC, guarded by versions: item -> the number of its last
+    // commit here, and the items of validated transactions -> their xid.
+    // An item committed before the oldest workspace started is dropped
+    // from stamps once it has grown past pruneStampsAt.
+    private HashMap<String, Long> stamps = new HashMap<String, Long>();
+    private HashMap<String, Integer> validated = new HashMap<String, Integer>();
+    private volatile long commits;
+    private int pruneStampsAt = PRUNE_STAMPS;
+    private static final int PRUNE_STAMPS = 1024;
 
     public static void main(String args[]) {
         System.setSecurityManager(new RMISecurityManager());
@@ -134,10 +129,26 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
         checkDataDir();
         recover();
+        // snapshots older than what was just loaded cannot read here
+        tm.recovered(myRMIName);
         activeTransactions = new HashMap<Integer, ArrayList<TableModified>>();
         preparedTransactions = new HashMap<Integer, Boolean>();
-        if (lm == null)
-            lm = new LockManager();
+        // each RM gets its own lock space, even when several share a JVM
+        lm = LockManagerFactory.newLockManager();
+        // e.g. readers for a read-mostly RM, writers for RMCustomers
+        String grantPolicy = System.getProperty("lockGrant." + rmiName);
+        if (grantPolicy != null) {
+            lm.setGrantPolicy(LockManagerFactory.grantPolicy(grantPolicy));
+        }
+        occ = "occ".equals(System.getProperty("concurrency." + rmiName, System.getProperty("concurrency")));
+        if (Boolean.getBoolean("lockStatsJmx")) {
+            lm.getStats().setEnabled(true);
+            try {
+                lm.getStats().registerMBean(rmiName);
+            } catch (Exception e) {
+                System.err.println(rmiName + " cannot register lock statistics:" + e);
+            }
+        }
     }
 
     public boolean reconnect() throws RemoteException {
@@ -176,210 +187,192 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throw new InvalidTransactionException(xid, "InvalidTransactionException");
     }
 
+    // Loads the last checkpoint of the committed table and replays the
+    // commits in the redo log onto it.  The active table starts as a
+    // copy of the committed one: the transactions in progress when the
+    // RM stopped are aborted, and those prepared but not committed have
+    // no commit record.
     private boolean recover() {
-        File file;
-        if (myRMIName.equals(RMINameFlights)) {
-            file = new File(P_FLIGHTS_RECOVER);
-            if (file.exists()) {
-                System.out.println(myRMIName + " P_FLIGHTS_RECOVER");
-                file.delete();
-                file = new File(P_FLIGHTS_DB);
-                try {
-                    if (file.exists()) {
-                        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(P_FLIGHTS_DB));
-                        aFlightsTable = (FlightsTable) ois.readObject();
-                        ois.close();
-                        store(FLIGHTS_DB, aFlightsTable);
-                        store(A_FLIGHTS_DB, aFlightsTable);
-                        file.delete();
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
-            file = new File(FLIGHTS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(FLIGHTS_DB));
-                    flightsTable = (FlightsTable) ois.readObject();
-                    ois.close();
-                } else
-                    flightsTable = new FlightsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-            file = new File(A_FLIGHTS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(A_FLIGHTS_DB));
-                    aFlightsTable = (FlightsTable) ois.readObject();
-                    ois.close();
-                } else
-                    aFlightsTable = new FlightsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-        } else if (myRMIName.equals(RMINameRooms)) {
-            file = new File(P_HOTELS_RECOVER);
-            if (file.exists()) {
-                System.out.println(myRMIName + " P_HOTELS_RECOVER");
-                file.delete();
-                file = new File(P_HOTELS_DB);
-                try {
-                    if (file.exists()) {
-                        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(P_HOTELS_DB));
-                        aHotelsTable = (HotelsTable) ois.readObject();
-                        ois.close();
-                        store(HOTELS_DB, aHotelsTable);
-                        store(A_HOTELS_DB, aHotelsTable);
-                        file.delete();
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
+        redoLog = new RedoLog(DATA_DIR + "/" + myRMIName + ".log");
+        try {
+            switch (myRMIName) {
+                case RMINameFlights:
+                    flightsTable = (FlightsTable) load(FLIGHTS_DB, new FlightsTable());
+                    break;
+                case RMINameRooms:
+                    hotelsTable = (HotelsTable) load(HOTELS_DB, new HotelsTable());
+                    break;
+                case RMINameCars:
+                    carsTable = (CarsTable) load(CARS_DB, new CarsTable());
+                    break;
+                case RMINameCustomers:
+                    reservationsTable = (ReservationsTable) load(RESERVATIONS_DB, new ReservationsTable());
+                    break;
             }
-            file = new File(HOTELS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(HOTELS_DB));
-                    hotelsTable = (HotelsTable) ois.readObject();
-                    ois.close();
-                } else
-                    hotelsTable = new HotelsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+            ArrayList<RedoLog.Record> records = redoLog.recover();
+            for (RedoLog.Record record : records)
+                redo(record);
+            if (records.isEmpty())
+                redoLog.restart();
+            else {
+                System.out.println(myRMIName + " redo " + records.size() + " transactions");
+                checkpoint();
             }
-            file = new File(A_HOTELS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(A_HOTELS_DB));
-                    aHotelsTable = (HotelsTable) ois.readObject();
-                    ois.close();
-                } else
-                    aHotelsTable = new HotelsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+            switch (myRMIName) {
+                case RMINameFlights:
+                    aFlightsTable = (FlightsTable) load(FLIGHTS_DB, new FlightsTable());
+                    break;
+                case RMINameRooms:
+                    aHotelsTable = (HotelsTable) load(HOTELS_DB, new HotelsTable());
+                    break;
+                case RMINameCars:
+                    aCarsTable = (CarsTable) load(CARS_DB, new CarsTable());
+                    break;
+                case RMINameCustomers:
+                    aReservationsTable = (ReservationsTable) load(RESERVATIONS_DB, new ReservationsTable());
+                    break;
             }
-        } else if (myRMIName.equals(RMINameCars)) {
-            file = new File(P_CARS_RECOVER);
-            if (file.exists()) {
-                System.out.println(myRMIName + " P_CARS_RECOVER");
-                file.delete();
-                file = new File(P_CARS_DB);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    // the object stored at path, or empty if there is none
+    private Object load(String path, Object empty) throws IOException, ClassNotFoundException {
+        File file = new File(path);
+        if (!file.exists())
+            return empty;
+        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    // Replaces the object stored at path, so that a crash leaves either
+    // the old one or the new one.
+    private void store(String path, Object object) throws IOException {
+        File temp = new File(path + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp, false);
+        ObjectOutputStream oos = new ObjectOutputStream(fos);
+        oos.writeObject(object);
+        oos.flush();
+        fos.getFD().sync();
+        oos.close();
+        Files.move(temp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Writes the committed table to disk and restarts the redo log from
+    // it.
+    private void checkpoint() throws IOException {
+        synchronized (versions) {
+            store(committedTable());
+            redoLog.restart();
+        }
+    }
+
+    // Starts a checkpoint unless one is being written: copies the
+    // committed table and rotates the redo log under the versions
+    // monitor, so that the commits the copy misses are in the new
+    // segment, and writes the copy in the background.
+    private void checkpointInBackground() throws IOException {
+        final Object table;
+        synchronized (versions) {
+            if (!redoLog.rotate())
+                return;
+            table = committedTable();
+        }
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                boolean written = false;
                 try {
-                    if (file.exists()) {
-                        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(P_CARS_DB));
-                        aCarsTable = (CarsTable) ois.readObject();
-                        ois.close();
-                        store(CARS_DB, aCarsTable);
-                        store(A_CARS_DB, aCarsTable);
-                        file.delete();
-                    }
-                } catch (Exception e) {
+                    store(table);
+                    written = true;
+                } catch (IOException e) {
+                    // the old segment stays until a checkpoint succeeds
                     e.printStackTrace();
-                    return false;
                 }
-            }
-            file = new File(CARS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(CARS_DB));
-                    carsTable = (CarsTable) ois.readObject();
-                    ois.close();
-                } else
-                    carsTable = new CarsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-            file = new File(A_CARS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(A_CARS_DB));
-                    aCarsTable = (CarsTable) ois.readObject();
-                    ois.close();
-                } else
-                    aCarsTable = new CarsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-        } else if (myRMIName.equals(RMINameCustomers)) {
-            file = new File(P_RESERVATIONS_RECOVER);
-            if (file.exists()) {
-                System.out.println(myRMIName + " P_RESERVATIONS_RECOVER");
-                file.delete();
-                file = new File(P_RESERVATIONS_DB);
                 try {
-                    if (file.exists()) {
-                        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(P_RESERVATIONS_DB));
-                        aReservationsTable = (ReservationsTable) ois.readObject();
-                        ois.close();
-                        store(RESERVATIONS_DB, aReservationsTable);
-                        store(A_RESERVATIONS_DB, aReservationsTable);
-                        file.delete();
-                    }
-                } catch (Exception e) {
+                    redoLog.checkpointed(written);
+                } catch (IOException e) {
                     e.printStackTrace();
-                    return false;
                 }
             }
-            file = new File(RESERVATIONS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(RESERVATIONS_DB));
-                    reservationsTable = (ReservationsTable) ois.readObject();
-                    ois.close();
-                } else
-                    reservationsTable = new ReservationsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-            file = new File(A_RESERVATIONS_DB);
-            try {
-                if (file.exists()) {
-                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(A_RESERVATIONS_DB));
-                    aReservationsTable = (ReservationsTable) ois.readObject();
-                    ois.close();
-                } else
-                    aReservationsTable = new ReservationsTable();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
+        }, myRMIName + " checkpoint");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // a copy of the committed table, sharing its rows: a commit replaces
+    // the rows it changes rather than changing them in place
+    private Object committedTable() {
+        switch (myRMIName) {
+            case RMINameFlights:
+                return flightsTable.copy();
+            case RMINameRooms:
+                return hotelsTable.copy();
+            case RMINameCars:
+                return carsTable.copy();
+            default:
+                return reservationsTable.copy();
         }
-        return true;
     }
 
-    private void store(String path, Object object) {
-        try {
-            File file = new File(path);
-            if (!file.exists()) {
-                file.createNewFile();
-            }
-            FileOutputStream fos = new FileOutputStream(file, false);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(object);
-            oos.close();
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    // writes a copy of the committed table to the checkpoint of this RM
+    private void store(Object table) throws IOException {
+        switch (myRMIName) {
+            case RMINameFlights:
+                store(FLIGHTS_DB, table);
+                break;
+            case RMINameRooms:
+                store(HOTELS_DB, table);
+                break;
+            case RMINameCars:
+                store(CARS_DB, table);
+                break;
+            case RMINameCustomers:
+                store(RESERVATIONS_DB, table);
+                break;
         }
     }
 
-    private void delete(String path) {
-        try {
-            File file = new File(path);
-            if (file.exists())
-                file.delete();
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    // Applies the after-images of a committed transaction from the redo
+    // log to the committed table.
+    @SuppressWarnings("unchecked")
+    private void redo(RedoLog.Record record) {
+        for (int i = 0; i < record.keys.length; i++) {
+            String key = record.keys[i];
+            Object row = record.rows[i];
+            switch (record.tables[i]) {
+                case KeyFlight:
+                    if (row != null)
+                        flightsTable.put(key, (FlightsRow) row);
+                    else
+                        flightsTable.deleteFlight(key);
+                    break;
+                case KeyHotel:
+                    if (row != null)
+                        hotelsTable.put(key, (HotelsRow) row);
+                    else
+                        hotelsTable.remove(key);
+                    break;
+                case KeyCar:
+                    if (row != null)
+                        carsTable.put(key, (CarsRow) row);
+                    else
+                        carsTable.remove(key);
+                    break;
+                case KeyReservation:
+                    if (row != null)
+                        reservationsTable.put(key, (ArrayList<ResvPair>) row);
+                    else
+                        reservationsTable.deleteCustomer(key);
+                    break;
+            }
         }
     }
 
@@ -424,6 +417,11 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     }
 
     private void updateActiveTransactions(int xid, String Table, String TableKey) {
+        if (occ) {
+            // kept out of the active tables until validated
+            workspace(xid).writes.add(new TableModified(Table, TableKey));
+            return;
+        }
         ArrayList<TableModified> tableModifieds;
         if (activeTransactions.containsKey(xid))
             tableModifieds = activeTransactions.get(xid);
@@ -433,165 +431,443 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         activeTransactions.put(xid, tableModifieds);
     }
 
-    private void tm_enlist(int xid, String rmiName)
+    // Enlists this RM in transaction xid, and returns the timestamp of
+    // the snapshot it reads if it is read-only, or -1.
+    private long enlist(int xid, String rmiName)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
-        tm.enlist(xid, rmiName);
+        long snapshot = tm.enlist(xid, rmiName);
         if (!activeTransactions.containsKey(xid))
             activeTransactions.put(xid, new ArrayList<TableModified>());
         if (!preparedTransactions.containsKey(xid))
             preparedTransactions.put(xid, false);
+        if (snapshot >= 0)
+            synchronized (snapshots) {
+                snapshots.put(xid, snapshot);
+            }
         if (flagDieRMAfterEnlist)
             dieNow();
+        return snapshot;
+    }
+
+    // Enlists this RM in transaction xid, which is going to take locks.
+    private void tm_enlist(int xid, String rmiName)
+            throws RemoteException, InvalidTransactionException, TransactionAbortedException {
+        if (enlist(xid, rmiName) >= 0)
+            throw new InvalidTransactionException(xid, "Read-only transaction");
+    }
+
+    // the row of table as of snapshot, or null if it did not exist
+    private Object snapshotRow(String table, String key, long snapshot) {
+        synchronized (versions) {
+            return versions.read(table + key, snapshot, committedRow(table, key));
+        }
+    }
+
+    private Object committedRow(String table, String key) {
+        switch (table) {
+            case KeyFlight:
+                return flightsTable.get(key);
+            case KeyHotel:
+                return hotelsTable.get(key);
+            case KeyCar:
+                return carsTable.get(key);
+            default:
+                return reservationsTable.get(key);
+        }
+    }
+
+    private Object activeRow(String table, String key) {
+        switch (table) {
+            case KeyFlight:
+                return aFlightsTable.get(key);
+            case KeyHotel:
+                return aHotelsTable.get(key);
+            case KeyCar:
+                return aCarsTable.get(key);
+            default:
+                return aReservationsTable.get(key);
+        }
     }
 
     public boolean lm_unlockAll(int xid) throws RemoteException {
         System.out.println(myRMIName + " unlock #" + xid);
+        synchronized (lockWaitBudgets) {
+            lockWaitBudgets.remove(xid);
+        }
+        lm.getTrace().trace(xid, false);
         return lm.unlockAll(xid);
     }
 
+    public ArrayList<KeyStats> lm_hotKeys(int n) throws RemoteException {
+        return lm.getStats().hotKeys(n);
+    }
+
+    public void setLockTrace(int xid, boolean on) throws RemoteException {
+        lm.getTrace().trace(xid, on);
+    }
+
+    public ArrayList<LockEvent> lm_trace(int xid) throws RemoteException {
+        return lm.getTrace().events(xid);
+    }
+
+    public void setLockWaitBudget(int xid, long millis) throws RemoteException {
+        synchronized (lockWaitBudgets) {
+            lockWaitBudgets.put(xid, millis);
+        }
+    }
+
+    // Locks a row, charging the wait to the transaction's lock wait
+    // budget.  Throws TransactionAbortedException once the budget is
+    // used up.
+    private boolean lock(int xid, String table, String row, int lockType)
+            throws DeadlockException, TransactionAbortedException {
+        if (occ) {
+            copyIn(workspace(xid), table, row);
+            return true;
+        }
+        long budget;
+        synchronized (lockWaitBudgets) {
+            Long left = lockWaitBudgets.get(xid);
+            budget = (left != null) ? left : DEFAULT_LOCK_WAIT_BUDGET;
+        }
+        if (budget < 0)
+            return lm.lock(xid, table, row, lockType);
+
+        long start = System.currentTimeMillis();
+        boolean granted = lm.lock(xid, table, row, lockType, budget);
+        long left = budget - (System.currentTimeMillis() - start);
+        synchronized (lockWaitBudgets) {
+            lockWaitBudgets.put(xid, Math.max(0, left));
+        }
+        if (!granted && left <= 0)
+            throw new TransactionAbortedException(xid, "Lock wait budget exhausted");
+        return granted;
+    }
+
+    // Locks rows of one table together through LockManager.lockAll,
+    // charging the wait to the lock wait budget as lock() does.
+    private boolean lockAll(int xid, String table, List<String> rows, int lockType)
+            throws DeadlockException, TransactionAbortedException {
+        if (occ) {
+            for (String row : rows)
+                copyIn(workspace(xid), table, row);
+            return true;
+        }
+        LockKey[] keys = new LockKey[rows.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = LockKey.of(table, rows.get(i));
+        long budget;
+        synchronized (lockWaitBudgets) {
+            Long left = lockWaitBudgets.get(xid);
+            budget = (left != null) ? left : DEFAULT_LOCK_WAIT_BUDGET;
+        }
+        if (budget < 0)
+            return lm.lockAll(xid, keys, lockType);
+
+        long start = System.currentTimeMillis();
+        boolean granted = lm.lockAll(xid, keys, lockType, budget);
+        long left = budget - (System.currentTimeMillis() - start);
+        synchronized (lockWaitBudgets) {
+            lockWaitBudgets.put(xid, Math.max(0, left));
+        }
+        if (!granted && left <= 0)
+            throw new TransactionAbortedException(xid, "Lock wait budget exhausted");
+        return granted;
+    }
+
+    private Workspace workspace(int xid) {
+        synchronized (workspaces) {
+            Workspace workspace = workspaces.get(xid);
+            if (workspace == null) {
+                workspace = new Workspace();
+                workspace.start = commits;
+                workspaces.put(xid, workspace);
+            }
+            return workspace;
+        }
+    }
+
+    // the tables transaction xid works on: the active tables, or its
+    // workspace under OCC
+    private FlightsTable flights(int xid) {
+        return occ ? workspace(xid).flights : aFlightsTable;
+    }
+
+    private HotelsTable hotels(int xid) {
+        return occ ? workspace(xid).hotels : aHotelsTable;
+    }
+
+    private CarsTable cars(int xid) {
+        return occ ? workspace(xid).cars : aCarsTable;
+    }
+
+    private ReservationsTable reservations(int xid) {
+        return occ ? workspace(xid).reservations : aReservationsTable;
+    }
+
+    // Copies the committed row into the workspace the first time the
+    // transaction touches it, and records the version read.
+    private void copyIn(Workspace workspace, String table, String key) {
+        String item = table + key;
+        if (workspace.reads.containsKey(item))
+            return;
+        synchronized (versions) {
+            Long stamp = stamps.get(item);
+            workspace.reads.put(item, (stamp != null) ? stamp : 0);
+            switch (table) {
+                case KeyFlight:
+                    if (flightsTable.containsKey(key)) {
+                        FlightsRow flightsRow = flightsTable.get(key);
+                        workspace.flights.put(key, new FlightsRow(flightsRow.getFlightNum(),
+                                flightsRow.getPrice(), flightsRow.getNumSeats(), flightsRow.getNumAvail()));
+                    }
+                    break;
+                case KeyHotel:
+                    if (hotelsTable.containsKey(key)) {
+                        HotelsRow hotelsRow = hotelsTable.get(key);
+                        workspace.hotels.put(key, new HotelsRow(hotelsRow.getLocation(),
+                                hotelsRow.getPrice(), hotelsRow.getNumRooms(), hotelsRow.getNumAvail()));
+                    }
+                    break;
+                case KeyCar:
+                    if (carsTable.containsKey(key)) {
+                        CarsRow carsRow = carsTable.get(key);
+                        workspace.cars.put(key, new CarsRow(carsRow.getLocation(),
+                                carsRow.getPrice(), carsRow.getNumCars(), carsRow.getNumAvail()));
+                    }
+                    break;
+                case KeyReservation:
+                    if (reservationsTable.containsKey(key))
+                        workspace.reservations.put(key, reservationsTable.getClone(key));
+                    break;
+            }
+        }
+    }
+
+    // Validates the workspace of xid: no row it read may have been
+    // committed since, or be about to be by another validated
+    // transaction; a row with no stamp was last committed before the
+    // workspace started.  A valid workspace is applied to the active tables,
+    // and its rows are kept from other validations until xid ends.
+    private boolean validate(int xid) throws InvalidTransactionException {
+        Workspace workspace;
+        synchronized (workspaces) {
+            workspace = workspaces.get(xid);
+        }
+        if (workspace == null)
+            return true;
+        synchronized (versions) {
+            for (String item : workspace.reads.keySet()) {
+                Long stamp = stamps.get(item);
+                Integer holder = validated.get(item);
+                if (((stamp != null) ? stamp : 0) > workspace.reads.get(item)
+                        || (holder != null && holder != xid))
+                    return false;
+            }
+            for (TableModified tableModified : workspace.writes) {
+                String key = tableModified.getTableKey();
+                validated.put(tableModified.getTableType() + key, xid);
+                switch (tableModified.getTableType()) {
+                    case KeyFlight:
+                        if (workspace.flights.containsKey(key))
+                            aFlightsTable.put(key, workspace.flights.get(key));
+                        else
+                            aFlightsTable.deleteFlight(key);
+                        break;
+                    case KeyHotel:
+                        if (workspace.hotels.containsKey(key))
+                            aHotelsTable.put(key, workspace.hotels.get(key));
+                        else
+                            aHotelsTable.remove(key);
+                        break;
+                    case KeyCar:
+                        if (workspace.cars.containsKey(key))
+                            aCarsTable.put(key, workspace.cars.get(key));
+                        else
+                            aCarsTable.remove(key);
+                        break;
+                    case KeyReservation:
+                        if (workspace.reservations.containsKey(key))
+                            aReservationsTable.put(key, workspace.reservations.get(key));
+                        else
+                            aReservationsTable.deleteCustomer(key);
+                        break;
+                    default:
+                        throw new InvalidTransactionException(xid, "InvalidTransactionException");
+                }
+            }
+            activeTransactions.get(xid).addAll(workspace.writes);
+            workspace.writes.clear();
+        }
+        return true;
+    }
+
+    // drops the stamps of the items committed before the oldest
+    // workspace started, which no workspace can have read older
+    // versions of; called with versions held
+    private void pruneStamps() {
+        long oldest = commits;
+        synchronized (workspaces) {
+            for (Workspace workspace : workspaces.values())
+                oldest = Math.min(oldest, workspace.start);
+        }
+        Iterator<Long> stamp = stamps.values().iterator();
+        while (stamp.hasNext())
+            if (stamp.next() <= oldest)
+                stamp.remove();
+        pruneStampsAt = Math.max(PRUNE_STAMPS, 2 * stamps.size());
+    }
+
+    // forgets the workspace of xid, and lets other transactions
+    // validate against the rows it validated
+    private void dropWorkspace(int xid) {
+        Workspace workspace;
+        synchronized (workspaces) {
+            workspace = workspaces.remove(xid);
+        }
+        if (workspace == null)
+            return;
+        synchronized (versions) {
+            for (String item : workspace.reads.keySet()) {
+                Integer holder = validated.get(item);
+                if (holder != null && holder == xid)
+                    validated.remove(item);
+            }
+        }
+    }
+
     // TRANSACTION INTERFACE
     public boolean prepare(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         if (flagDieRMBeforePrepare)
             dieNow();
         checkXid(xid);
-        boolean MF = false, MH = false, MC = false, MR = false;
-        for (TableModified tableModified : activeTransactions.get(xid))
+        if (occ && !validate(xid))
+            throw new TransactionAbortedException(xid, "Validation failed");
+        // the after-images of the rows it changed go to the redo log
+        ArrayList<TableModified> tableModifieds = activeTransactions.get(xid);
+        RedoLog.Record record = new RedoLog.Record(xid, tableModifieds.size());
+        for (int i = 0; i < tableModifieds.size(); i++) {
+            TableModified tableModified = tableModifieds.get(i);
             switch (tableModified.getTableType()) {
                 case KeyFlight:
-                    MF = true;
-                    break;
                 case KeyHotel:
-                    MH = true;
-                    break;
                 case KeyCar:
-                    MC = true;
-                    break;
                 case KeyReservation:
-                    MR = true;
                     break;
                 default:
                     throw new InvalidTransactionException(xid, "InvalidTransactionException");
             }
-        if (myRMIName.equals(ResourceManager.RMINameFlights) && MF)
-            store(P_FLIGHTS_DB, aFlightsTable);
-        if (myRMIName.equals(ResourceManager.RMINameRooms) && MH)
-            store(P_HOTELS_DB, aHotelsTable);
-        if (myRMIName.equals(ResourceManager.RMINameCars) && MC)
-            store(P_CARS_DB, aCarsTable);
-        if (myRMIName.equals(ResourceManager.RMINameCustomers) && MR)
-            store(P_RESERVATIONS_DB, aReservationsTable);
-        System.out.println("prepare store " + myRMIName + " #" + xid + " P_DB");
+            record.tables[i] = tableModified.getTableType();
+            record.keys[i] = tableModified.getTableKey();
+            record.rows[i] = activeRow(tableModified.getTableType(), tableModified.getTableKey());
+        }
+        if (!tableModifieds.isEmpty())
+            try {
+                redoLog.prepare(record);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new TransactionAbortedException(xid, "Redo log write failed");
+            }
+        System.out.println("prepare log " + myRMIName + " #" + xid);
         preparedTransactions.put(xid, true);
         if (flagDieRMAfterPrepare)
             dieNow();
         return true;
     }
 
-    public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+    public boolean commit(int xid, long timestamp, long horizon)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         System.out.println("Committing");
 
-        switch (myRMIName) {
-            case ResourceManager.RMINameFlights:
-                store(P_FLIGHTS_RECOVER, null);
-                break;
-            case ResourceManager.RMINameRooms:
-                store(P_HOTELS_RECOVER, null);
-                break;
-            case ResourceManager.RMINameCars:
-                store(P_CARS_RECOVER, null);
-                break;
-            case ResourceManager.RMINameCustomers:
-                store(P_RESERVATIONS_RECOVER, null);
-                break;
+        boolean readOnly;
+        synchronized (snapshots) {
+            readOnly = snapshots.remove(xid) != null;
+        }
+        if (readOnly) {
+            // it has read a snapshot and changed nothing
+            activeTransactions.remove(xid);
+            preparedTransactions.remove(xid);
+            return true;
         }
 
         checkXid(xid);
         System.out.println("prepared " + myRMIName + " #" + xid + ": " + preparedTransactions.get(xid));
         if (!preparedTransactions.get(xid))
             return false;
+        // once the commit record is on disk the transaction is committed
+        // here, whatever happens next
+        try {
+            redoLog.commit(xid);
+        } catch (IOException e) {
+            throw new RemoteException("Redo log write failed", e);
+        }
         if (flagDieRMBeforeCommit)
             dieNow();
-        boolean MF = false, MH = false, MC = false, MR = false;
-        for (TableModified tableModified : activeTransactions.get(xid))
-            switch (tableModified.getTableType()) {
-                case KeyFlight:
-                    if (aFlightsTable.containsKey(tableModified.getTableKey())) {
-                        FlightsRow flightsRow = aFlightsTable.get(tableModified.getTableKey());
-                        flightsTable.put(tableModified.getTableKey(), new FlightsRow(flightsRow.getFlightNum(),
-                                flightsRow.getPrice(), flightsRow.getNumSeats(), flightsRow.getNumAvail()));
-                    } else
-                        flightsTable.deleteFlight(tableModified.getTableKey());
-                    MF = true;
-                    break;
-                case KeyHotel:
-                    if (aHotelsTable.containsKey(tableModified.getTableKey())) {
-                        HotelsRow hotelsRow = aHotelsTable.get(tableModified.getTableKey());
-                        hotelsTable.put(tableModified.getTableKey(), new HotelsRow(hotelsRow.getLocation(),
-                                hotelsRow.getPrice(), hotelsRow.getNumRooms(), hotelsRow.getNumAvail()));
-                    } else
-                        hotelsTable.remove(tableModified.getTableKey());
-                    MH = true;
-                    break;
-                case KeyCar:
-                    if (aCarsTable.containsKey(tableModified.getTableKey())) {
-                        CarsRow carsRow = aCarsTable.get(tableModified.getTableKey());
-                        carsTable.put(tableModified.getTableKey(), new CarsRow(carsRow.getLocation(),
-                                carsRow.getPrice(), carsRow.getNumCars(), carsRow.getNumAvail()));
-                    } else
-                        carsTable.remove(tableModified.getTableKey());
-                    MC = true;
-                    break;
-                case KeyReservation:
-                    if (aReservationsTable.containsKey(tableModified.getTableKey()))
-                        reservationsTable.put(tableModified.getTableKey(),
-                                aReservationsTable.getClone(tableModified.getTableKey()));
-                    else
-                        reservationsTable.deleteCustomer(tableModified.getTableKey());
-                    MR = true;
-                    break;
-                default:
-                    throw new InvalidTransactionException(xid,
-                            "Merge invalid updates into the non-active database copy.");
+        synchronized (versions) {
+            long stamp = ++commits;
+            for (TableModified tableModified : activeTransactions.get(xid)) {
+                // the version it replaces stays readable to older snapshots
+                String item = tableModified.getTableType() + tableModified.getTableKey();
+                Object before = committedRow(tableModified.getTableType(), tableModified.getTableKey());
+                switch (tableModified.getTableType()) {
+                    case KeyFlight:
+                        if (aFlightsTable.containsKey(tableModified.getTableKey())) {
+                            FlightsRow flightsRow = aFlightsTable.get(tableModified.getTableKey());
+                            flightsTable.put(tableModified.getTableKey(), new FlightsRow(flightsRow.getFlightNum(),
+                                    flightsRow.getPrice(), flightsRow.getNumSeats(), flightsRow.getNumAvail()));
+                        } else
+                            flightsTable.deleteFlight(tableModified.getTableKey());
+                        break;
+                    case KeyHotel:
+                        if (aHotelsTable.containsKey(tableModified.getTableKey())) {
+                            HotelsRow hotelsRow = aHotelsTable.get(tableModified.getTableKey());
+                            hotelsTable.put(tableModified.getTableKey(), new HotelsRow(hotelsRow.getLocation(),
+                                    hotelsRow.getPrice(), hotelsRow.getNumRooms(), hotelsRow.getNumAvail()));
+                        } else
+                            hotelsTable.remove(tableModified.getTableKey());
+                        break;
+                    case KeyCar:
+                        if (aCarsTable.containsKey(tableModified.getTableKey())) {
+                            CarsRow carsRow = aCarsTable.get(tableModified.getTableKey());
+                            carsTable.put(tableModified.getTableKey(), new CarsRow(carsRow.getLocation(),
+                                    carsRow.getPrice(), carsRow.getNumCars(), carsRow.getNumAvail()));
+                        } else
+                            carsTable.remove(tableModified.getTableKey());
+                        break;
+                    case KeyReservation:
+                        if (aReservationsTable.containsKey(tableModified.getTableKey()))
+                            reservationsTable.put(tableModified.getTableKey(),
+                                    aReservationsTable.getClone(tableModified.getTableKey()));
+                        else
+                            reservationsTable.deleteCustomer(tableModified.getTableKey());
+                        break;
+                    default:
+                        throw new InvalidTransactionException(xid,
+                                "Merge invalid updates into the non-active database copy.");
+                }
+                versions.install(item, before,
+                        committedRow(tableModified.getTableType(), tableModified.getTableKey()), timestamp, horizon);
+                if (occ)
+                    stamps.put(item, stamp);
             }
+            if (stamps.size() > pruneStampsAt)
+                pruneStamps();
+            // a checkpoint from now on includes the commit
+            redoLog.forget(xid);
+        }
+        if (occ)
+            dropWorkspace(xid);
 
         if (flagDieBeforePointerSwitch)
             dieNow();
 
-        if (myRMIName.equals(ResourceManager.RMINameFlights) && MF) {
-            store(FLIGHTS_DB, flightsTable);
-            store(A_FLIGHTS_DB, aFlightsTable);
-            delete(P_FLIGHTS_DB);
-        }
-        if (myRMIName.equals(ResourceManager.RMINameRooms) && MH) {
-            store(HOTELS_DB, hotelsTable);
-            store(A_HOTELS_DB, aHotelsTable);
-            delete(P_HOTELS_DB);
-        }
-        if (myRMIName.equals(ResourceManager.RMINameCars) && MC) {
-            store(CARS_DB, carsTable);
-            store(A_CARS_DB, aCarsTable);
-            delete(P_CARS_DB);
-        }
-        if (myRMIName.equals(ResourceManager.RMINameCustomers) && MR) {
-            store(RESERVATIONS_DB, reservationsTable);
-            store(A_RESERVATIONS_DB, aReservationsTable);
-            delete(P_RESERVATIONS_DB);
-        }
-
-        switch (myRMIName) {
-            case ResourceManager.RMINameFlights:
-                delete(P_FLIGHTS_RECOVER);
-                break;
-            case ResourceManager.RMINameRooms:
-                delete(P_HOTELS_RECOVER);
-                break;
-            case ResourceManager.RMINameCars:
-                delete(P_CARS_RECOVER);
-                break;
-            case ResourceManager.RMINameCustomers:
-                delete(P_RESERVATIONS_RECOVER);
-                break;
-        }
+        if (redoLog.size() > CHECKPOINT_BYTES)
+            try {
+                checkpointInBackground();
+            } catch (IOException e) {
+                // the log keeps every commit until a checkpoint succeeds
+                e.printStackTrace();
+            }
 
         if (flagDieAfterPointerSwitch)
             dieNow();
@@ -609,23 +885,15 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                 dieNow();
             undo(xid);
         }
+        if (occ)
+            dropWorkspace(xid);
         activeTransactions.remove(xid);
+        synchronized (snapshots) {
+            snapshots.remove(xid);
+        }
         if (preparedTransactions.containsKey(xid) && preparedTransactions.get(xid)) {
-            switch (myRMIName) {
-                case ResourceManager.RMINameFlights:
-                    delete(P_FLIGHTS_DB);
-                    break;
-                case ResourceManager.RMINameRooms:
-                    delete(P_HOTELS_DB);
-                    break;
-                case ResourceManager.RMINameCars:
-                    delete(P_CARS_DB);
-                    break;
-                case ResourceManager.RMINameCustomers:
-                    delete(P_RESERVATIONS_DB);
-                    break;
-            }
-            System.out.println("abort delete " + myRMIName + " #" + xid + " P_DB");
+            redoLog.forget(xid);
+            System.out.println("abort forget " + myRMIName + " #" + xid + " redo");
         }
         preparedTransactions.remove(xid);
         lm_unlockAll(xid);
@@ -636,9 +904,9 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameFlights);
         try {
-            if (lm.lock(xid, KeyFlight + flightNum, LockManager.WRITE)) {
+            if (lock(xid, KeyFlight, flightNum, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyFlight, flightNum);
-                return aFlightsTable.addFlight(flightNum, numSeats, price);
+                return flights(xid).addFlight(flightNum, numSeats, price);
             } else
                 return false;
         } catch (DeadlockException e) {
@@ -650,11 +918,11 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameFlights);
         try {
-            if (lm.lock(xid, KeyFlight + flightNum, LockManager.WRITE))
-                if (aFlightsTable.containsKey(flightNum))
-                    if (aFlightsTable.get(flightNum).getNumSeats() == aFlightsTable.get(flightNum).getNumAvail()) {
+            if (lock(xid, KeyFlight, flightNum, LockManager.WRITE))
+                if (flights(xid).containsKey(flightNum))
+                    if (flights(xid).get(flightNum).getNumSeats() == flights(xid).get(flightNum).getNumAvail()) {
                         updateActiveTransactions(xid, KeyFlight, flightNum);
-                        return aFlightsTable.deleteFlight(flightNum);
+                        return flights(xid).deleteFlight(flightNum);
                     }
             return false;
         } catch (DeadlockException e) {
@@ -666,9 +934,9 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameRooms);
         try {
-            if (lm.lock(xid, KeyHotel + location, LockManager.WRITE)) {
+            if (lock(xid, KeyHotel, location, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyHotel, location);
-                return aHotelsTable.addRooms(location, numRooms, price);
+                return hotels(xid).addRooms(location, numRooms, price);
             } else
                 return false;
         } catch (DeadlockException e) {
@@ -680,11 +948,11 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameRooms);
         try {
-            if (lm.lock(xid, KeyHotel + location, LockManager.WRITE))
-                if (aHotelsTable.containsKey(location))
-                    if (aHotelsTable.get(location).getNumRooms() == aHotelsTable.get(location).getNumAvail()) {
+            if (lock(xid, KeyHotel, location, LockManager.WRITE))
+                if (hotels(xid).containsKey(location))
+                    if (hotels(xid).get(location).getNumRooms() == hotels(xid).get(location).getNumAvail()) {
                         updateActiveTransactions(xid, KeyHotel, location);
-                        return aHotelsTable.deleteRooms(location, numRooms);
+                        return hotels(xid).deleteRooms(location, numRooms);
                     }
             return false;
         } catch (DeadlockException e) {
@@ -696,9 +964,9 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameCars);
         try {
-            if (lm.lock(xid, KeyCar + location, LockManager.WRITE)) {
+            if (lock(xid, KeyCar, location, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyCar, location);
-                return aCarsTable.addCars(location, numCars, price);
+                return cars(xid).addCars(location, numCars, price);
             } else
                 return false;
         } catch (DeadlockException e) {
@@ -710,11 +978,11 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameCars);
         try {
-            if (lm.lock(xid, KeyCar + location, LockManager.WRITE))
-                if (aCarsTable.containsKey(location))
-                    if (aCarsTable.get(location).getNumCars() == aCarsTable.get(location).getNumAvail()) {
+            if (lock(xid, KeyCar, location, LockManager.WRITE))
+                if (cars(xid).containsKey(location))
+                    if (cars(xid).get(location).getNumCars() == cars(xid).get(location).getNumAvail()) {
                         updateActiveTransactions(xid, KeyCar, location);
-                        return aCarsTable.deleteCars(location, numCars);
+                        return cars(xid).deleteCars(location, numCars);
                     }
             return false;
         } catch (DeadlockException e) {
@@ -726,9 +994,9 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameCustomers);
         try {
-            if (lm.lock(xid, KeyReservation + custName, LockManager.WRITE)) {
+            if (lock(xid, KeyReservation, custName, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyReservation, custName);
-                return aReservationsTable.newCustomer(custName);
+                return reservations(xid).newCustomer(custName);
             } else
                 return false;
         } catch (DeadlockException e) {
@@ -740,12 +1008,12 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameCustomers);
         try {
-            if (lm.lock(xid, KeyReservation + custName, LockManager.WRITE)) {
-                for (ResvPair resvPair : aReservationsTable.get(custName)) {
+            if (lock(xid, KeyReservation, custName, LockManager.WRITE)) {
+                for (ResvPair resvPair : reservations(xid).get(custName)) {
                     if (resvPair.getResvType() == ReservationsTable.resvTypeFlight) {
                         try {
-                            if (lm.lock(xid, KeyFlight + resvPair.getResvKey(), LockManager.WRITE)) {
-                                aFlightsTable.cancelFlight(resvPair.getResvKey());
+                            if (lock(xid, KeyFlight, resvPair.getResvKey(), LockManager.WRITE)) {
+                                flights(xid).cancelFlight(resvPair.getResvKey());
                                 updateActiveTransactions(xid, KeyFlight, resvPair.getResvKey());
                             } else
                                 return false;
@@ -754,8 +1022,8 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                         }
                     } else if (resvPair.getResvType() == ReservationsTable.resvTypeHotelRoom) {
                         try {
-                            if (lm.lock(xid, KeyHotel + resvPair.getResvKey(), LockManager.WRITE)) {
-                                aHotelsTable.cancelRoom(resvPair.getResvKey());
+                            if (lock(xid, KeyHotel, resvPair.getResvKey(), LockManager.WRITE)) {
+                                hotels(xid).cancelRoom(resvPair.getResvKey());
                                 updateActiveTransactions(xid, KeyHotel, resvPair.getResvKey());
                             } else
                                 return false;
@@ -764,8 +1032,8 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                         }
                     } else if (resvPair.getResvType() == ReservationsTable.resvTypeCar) {
                         try {
-                            if (lm.lock(xid, KeyCar + resvPair.getResvKey(), LockManager.WRITE)) {
-                                aCarsTable.cancelCar(resvPair.getResvKey());
+                            if (lock(xid, KeyCar, resvPair.getResvKey(), LockManager.WRITE)) {
+                                cars(xid).cancelCar(resvPair.getResvKey());
                                 updateActiveTransactions(xid, KeyCar, resvPair.getResvKey());
                             } else
                                 return false;
@@ -776,7 +1044,7 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
                         return false;
                 }
                 updateActiveTransactions(xid, KeyReservation, custName);
-                return aReservationsTable.deleteCustomer(custName);
+                return reservations(xid).deleteCustomer(custName);
             } else
                 return false;
         } catch (DeadlockException e) {
@@ -787,10 +1055,14 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
     // QUERY INTERFACE
     public int queryFlight(int xid, String flightNum)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        tm_enlist(xid, ResourceManager.RMINameFlights);
+        long snapshot = enlist(xid, ResourceManager.RMINameFlights);
+        if (snapshot >= 0) {
+            FlightsRow flightsRow = (FlightsRow) snapshotRow(KeyFlight, flightNum, snapshot);
+            return (flightsRow != null) ? flightsRow.getNumAvail() : -1;
+        }
         try {
-            if (lm.lock(xid, KeyFlight + flightNum, LockManager.READ))
-                return aFlightsTable.queryFlight(flightNum);
+            if (lock(xid, KeyFlight, flightNum, LockManager.READ))
+                return flights(xid).queryFlight(flightNum);
             else
                 return -1;
         } catch (DeadlockException e) {
@@ -800,10 +1072,14 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
     public int queryFlightPrice(int xid, String flightNum)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        tm_enlist(xid, ResourceManager.RMINameFlights);
+        long snapshot = enlist(xid, ResourceManager.RMINameFlights);
+        if (snapshot >= 0) {
+            FlightsRow flightsRow = (FlightsRow) snapshotRow(KeyFlight, flightNum, snapshot);
+            return (flightsRow != null) ? flightsRow.getPrice() : -1;
+        }
         try {
-            if (lm.lock(xid, KeyFlight + flightNum, LockManager.READ))
-                return aFlightsTable.queryFlightPrice(flightNum);
+            if (lock(xid, KeyFlight, flightNum, LockManager.READ))
+                return flights(xid).queryFlightPrice(flightNum);
             else
                 return -1;
         } catch (DeadlockException e) {
@@ -813,10 +1089,14 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
     public int queryRooms(int xid, String location)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        tm_enlist(xid, ResourceManager.RMINameRooms);
+        long snapshot = enlist(xid, ResourceManager.RMINameRooms);
+        if (snapshot >= 0) {
+            HotelsRow hotelsRow = (HotelsRow) snapshotRow(KeyHotel, location, snapshot);
+            return (hotelsRow != null) ? hotelsRow.getNumAvail() : -1;
+        }
         try {
-            if (lm.lock(xid, KeyHotel + location, LockManager.READ))
-                return aHotelsTable.queryRooms(location);
+            if (lock(xid, KeyHotel, location, LockManager.READ))
+                return hotels(xid).queryRooms(location);
             else
                 return -1;
         } catch (DeadlockException e) {
@@ -826,10 +1106,14 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
     public int queryRoomsPrice(int xid, String location)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        tm_enlist(xid, ResourceManager.RMINameRooms);
+        long snapshot = enlist(xid, ResourceManager.RMINameRooms);
+        if (snapshot >= 0) {
+            HotelsRow hotelsRow = (HotelsRow) snapshotRow(KeyHotel, location, snapshot);
+            return (hotelsRow != null) ? hotelsRow.getPrice() : -1;
+        }
         try {
-            if (lm.lock(xid, KeyHotel + location, LockManager.READ))
-                return aHotelsTable.queryRoomsPrice(location);
+            if (lock(xid, KeyHotel, location, LockManager.READ))
+                return hotels(xid).queryRoomsPrice(location);
             else
                 return -1;
         } catch (DeadlockException e) {
@@ -839,10 +1123,14 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
     public int queryCars(int xid, String location)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        tm_enlist(xid, ResourceManager.RMINameCars);
+        long snapshot = enlist(xid, ResourceManager.RMINameCars);
+        if (snapshot >= 0) {
+            CarsRow carsRow = (CarsRow) snapshotRow(KeyCar, location, snapshot);
+            return (carsRow != null) ? carsRow.getNumAvail() : -1;
+        }
         try {
-            if (lm.lock(xid, KeyCar + location, LockManager.READ))
-                return aCarsTable.queryCars(location);
+            if (lock(xid, KeyCar, location, LockManager.READ))
+                return cars(xid).queryCars(location);
             else
                 return -1;
         } catch (DeadlockException e) {
@@ -852,10 +1140,53 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
     public int queryCarsPrice(int xid, String location)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        long snapshot = enlist(xid, ResourceManager.RMINameCars);
+        if (snapshot >= 0) {
+            CarsRow carsRow = (CarsRow) snapshotRow(KeyCar, location, snapshot);
+            return (carsRow != null) ? carsRow.getPrice() : -1;
+        }
+        try {
+            if (lock(xid, KeyCar, location, LockManager.READ))
+                return cars(xid).queryCarsPrice(location);
+            else
+                return -1;
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException(xid, "DeadlockException");
+        }
+    }
+
+    public int queryFlightForUpdate(int xid, String flightNum)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        tm_enlist(xid, ResourceManager.RMINameFlights);
+        try {
+            if (lock(xid, KeyFlight, flightNum, LockManager.UPDATE))
+                return flights(xid).queryFlight(flightNum);
+            else
+                return -1;
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException(xid, "DeadlockException");
+        }
+    }
+
+    public int queryRoomsForUpdate(int xid, String location)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        tm_enlist(xid, ResourceManager.RMINameRooms);
+        try {
+            if (lock(xid, KeyHotel, location, LockManager.UPDATE))
+                return hotels(xid).queryRooms(location);
+            else
+                return -1;
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException(xid, "DeadlockException");
+        }
+    }
+
+    public int queryCarsForUpdate(int xid, String location)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameCars);
         try {
-            if (lm.lock(xid, KeyCar + location, LockManager.READ))
-                return aCarsTable.queryCarsPrice(location);
+            if (lock(xid, KeyCar, location, LockManager.UPDATE))
+                return cars(xid).queryCars(location);
             else
                 return -1;
         } catch (DeadlockException e) {
@@ -865,11 +1196,16 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
 
     public ArrayList<ResvPair> queryCustomerResv(int xid, String custName)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
-        tm_enlist(xid, ResourceManager.RMINameCustomers);
+        long snapshot = enlist(xid, ResourceManager.RMINameCustomers);
+        if (snapshot >= 0) {
+            @SuppressWarnings("unchecked")
+            ArrayList<ResvPair> resvPairs = (ArrayList<ResvPair>) snapshotRow(KeyReservation, custName, snapshot);
+            return (resvPairs != null) ? resvPairs : new ArrayList<ResvPair>();
+        }
         try {
-            if (lm.lock(xid, KeyReservation + custName, LockManager.READ))
-                if (aReservationsTable.containsKey(custName))
-                    return aReservationsTable.get(custName);
+            if (lock(xid, KeyReservation, custName, LockManager.READ))
+                if (reservations(xid).containsKey(custName))
+                    return reservations(xid).get(custName);
             return new ArrayList<ResvPair>();
         } catch (DeadlockException e) {
             throw new TransactionAbortedException(xid, "DeadlockException");
@@ -881,9 +1217,9 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameFlights);
         try {
-            if (lm.lock(xid, KeyFlight + flightNum, LockManager.WRITE)) {
+            if (lock(xid, KeyFlight, flightNum, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyFlight, flightNum);
-                return aFlightsTable.reserveFlight(flightNum);
+                return flights(xid).reserveFlight(flightNum);
             }
             return false;
         } catch (DeadlockException e) {
@@ -891,13 +1227,43 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         }
     }
 
+    public boolean reserveFlights(int xid, String custName, List<?> flightNumList)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        tm_enlist(xid, ResourceManager.RMINameFlights);
+        List<String> flightNums = strings(flightNumList);
+        if (flightNums == null)
+            return false;
+        try {
+            if (!lockAll(xid, KeyFlight, flightNums, LockManager.WRITE))
+                return false;
+            // check every flight before reserving any
+            HashMap<String, Integer> seats = new HashMap<String, Integer>();
+            for (String flightNum : flightNums) {
+                Integer n = seats.get(flightNum);
+                seats.put(flightNum, (n == null) ? 1 : n + 1);
+            }
+            for (String flightNum : seats.keySet()) {
+                FlightsRow flightsRow = flights(xid).get(flightNum);
+                if (flightsRow == null || flightsRow.getNumAvail() < seats.get(flightNum))
+                    return false;
+            }
+            for (String flightNum : flightNums) {
+                updateActiveTransactions(xid, KeyFlight, flightNum);
+                flights(xid).reserveFlight(flightNum);
+            }
+            return true;
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException(xid, "DeadlockException");
+        }
+    }
+
     public boolean reserveCar(int xid, String custName, String location)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameCars);
         try {
-            if (lm.lock(xid, KeyCar + location, LockManager.WRITE)) {
+            if (lock(xid, KeyCar, location, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyCar, location);
-                return aCarsTable.reserveCar(location);
+                return cars(xid).reserveCar(location);
             }
             return false;
         } catch (DeadlockException e) {
@@ -909,9 +1275,9 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameRooms);
         try {
-            if (lm.lock(xid, KeyHotel + location, LockManager.WRITE)) {
+            if (lock(xid, KeyHotel, location, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyHotel, location);
-                return aHotelsTable.reserveRoom(location);
+                return hotels(xid).reserveRoom(location);
             }
             return false;
         } catch (DeadlockException e) {
@@ -923,9 +1289,9 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         tm_enlist(xid, ResourceManager.RMINameCustomers);
         try {
-            if (lm.lock(xid, KeyReservation + custName, LockManager.WRITE)) {
+            if (lock(xid, KeyReservation, custName, LockManager.WRITE)) {
                 updateActiveTransactions(xid, KeyReservation, custName);
-                return aReservationsTable.addResvPair(custName, resvType, resvKey);
+                return reservations(xid).addResvPair(custName, resvType, resvKey);
             }
             return false;
         } catch (DeadlockException e) {
@@ -933,6 +1299,39 @@ public class ResourceManagerImpl extends java.rmi.server.UnicastRemoteObject imp
         }
     }
 
+    public boolean reserveCustomer(int xid, String custName, int resvType, List<?> resvKeys)
+            throws RemoteException, TransactionAbortedException, InvalidTransactionException {
+        tm_enlist(xid, ResourceManager.RMINameCustomers);
+        // check every key before adding any
+        List<String> keys = strings(resvKeys);
+        if (keys == null)
+            return false;
+        try {
+            if (lock(xid, KeyReservation, custName, LockManager.WRITE)) {
+                updateActiveTransactions(xid, KeyReservation, custName);
+                for (String resvKey : keys)
+                    reservations(xid).addResvPair(custName, resvType, resvKey);
+                return true;
+            }
+            return false;
+        } catch (DeadlockException e) {
+            throw new TransactionAbortedException(xid, "DeadlockException");
+        }
+    }
+
+    // the elements of list, or null unless each is a String
+    private static List<String> strings(List<?> list) {
+        if (list == null)
+            return null;
+        ArrayList<String> strings = new ArrayList<String>(list.size());
+        for (Object element : list) {
+            if (!(element instanceof String))
+                return null;
+            strings.add((String) element);
+        }
+        return strings;
+    }
+
     // TECHNICAL/TESTING INTERFACE
     public boolean shutdown() throws RemoteException {
         System.exit(0);
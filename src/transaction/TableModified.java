@@ -0,0 +1,24 @@
+package transaction;
+
+import java.io.Serializable;
+
+class TableModified implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String tableType;
+    private String tableKey;
+
+    public TableModified(String tableType, String tableKey) {
+        this.tableType = tableType;
+        this.tableKey = tableKey;
+    }
+
+    public String getTableType() {
+        return tableType;
+    }
+
+    public String getTableKey() {
+        return tableKey;
+    }
+
+}
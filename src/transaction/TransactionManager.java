@@ -18,15 +18,38 @@ public interface TransactionManager extends Remote {
 
     public int start() throws RemoteException;
 
+    /**
+     * Start a read-only transaction.  It reads the snapshot of the
+     * committed data as of its start, at every RM, without taking
+     * locks; updates through it fail with InvalidTransactionException.
+     *
+     * @return its transaction id.
+     */
+    public int startReadOnly() throws RemoteException;
+
     public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException;
 
     public void abort(int xid) throws RemoteException, InvalidTransactionException;
 
-    public void enlist(int xid, String component)
+    /**
+     * Enlist an RM in a transaction.
+     *
+     * @return the timestamp of the snapshot a read-only transaction
+     *         reads, or -1 for a transaction that takes locks.
+     */
+    public long enlist(int xid, String component)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException;
 
     public boolean reconnect() throws RemoteException;
 
+    /**
+     * Tells the TM that an RM has loaded its committed data, at start or
+     * after a restart.  It has none of the older versions of its rows,
+     * so read-only transactions whose snapshot is older than every
+     * commit stamped so far abort when they enlist it.
+     */
+    public void recovered(String component) throws RemoteException;
+
     /**
      * Sets a flag so that the TM fails after it has received "prepared" messages
      * from all RMs, but before it can log "committed".
@@ -3,6 +3,9 @@ package transaction;
 import java.rmi.*;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Transaction Manager for the Distributed Travel Reservation System.
@@ -21,6 +24,23 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
     protected int xidCounter;
     private HashMap<Integer, HashSet<String>> activeTransactions;
 
+    // Commit timestamps, for snapshot reads.  The clock starts from the
+    // time of day, so that a restarted TM does not hand out timestamps
+    // again.  They are all guarded by committing.
+    private long clock = System.currentTimeMillis() * 1000;
+    // the timestamps of the commits still being applied at the RMs
+    private TreeSet<Long> committing = new TreeSet<Long>();
+    // commit timestamp -> the RMs whose commit failed; the timestamp
+    // stays in committing until each of them enlists again, having
+    // redone the commit from its log
+    private HashMap<Long, HashSet<String>> unacknowledged = new HashMap<Long, HashSet<String>>();
+    // RM -> the newest commit its committed table may hold without the
+    // versions before it, which it lost when it restarted, so a snapshot
+    // older than that cannot read there
+    private HashMap<String, Long> redone = new HashMap<String, Long>();
+    // read-only transaction -> the timestamp of its snapshot
+    private HashMap<Integer, Long> snapshots = new HashMap<Integer, Long>();
+
     public static void main(String args[]) {
         System.setSecurityManager(new RMISecurityManager());
 
@@ -93,72 +113,126 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
         return xidCounter;
     }
 
+    public int startReadOnly() throws RemoteException {
+        int xid = start();
+        synchronized (committing) {
+            snapshots.put(xid, stable());
+        }
+        return xid;
+    }
+
+    // the latest timestamp all commits up to which have been applied at
+    // every RM, so that a snapshot taken at it sees each of them
+    // everywhere; called with committing held
+    private long stable() {
+        return committing.isEmpty() ? clock : committing.first() - 1;
+    }
+
+    // the oldest snapshot a read-only transaction has or may be given;
+    // called with committing held
+    private long horizon() {
+        long horizon = stable();
+        for (long snapshot : snapshots.values())
+            horizon = Math.min(horizon, snapshot);
+        return horizon;
+    }
+
     public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         checkXid(xid);
-        for (String rmiName : activeTransactions.get(xid))
-            try {
-                System.out.println("prepare " + rmiName + " #" + xid);
-                switch (rmiName) {
-                    case ResourceManager.RMINameFlights:
-                        rmFlights.prepare(xid);
-                        break;
-                    case ResourceManager.RMINameRooms:
-                        rmRooms.prepare(xid);
-                        break;
-                    case ResourceManager.RMINameCars:
-                        rmCars.prepare(xid);
-                        break;
-                    case ResourceManager.RMINameCustomers:
-                        rmCustomers.prepare(xid);
-                        break;
+        boolean readOnly;
+        synchronized (committing) {
+            readOnly = snapshots.containsKey(xid);
+        }
+        // a read-only transaction has nothing to prepare
+        if (!readOnly) {
+            for (String rmiName : activeTransactions.get(xid))
+                try {
+                    System.out.println("prepare " + rmiName + " #" + xid);
+                    switch (rmiName) {
+                        case ResourceManager.RMINameFlights:
+                            rmFlights.prepare(xid);
+                            break;
+                        case ResourceManager.RMINameRooms:
+                            rmRooms.prepare(xid);
+                            break;
+                        case ResourceManager.RMINameCars:
+                            rmCars.prepare(xid);
+                            break;
+                        case ResourceManager.RMINameCustomers:
+                            rmCustomers.prepare(xid);
+                            break;
+                    }
+                } catch (RemoteException e) {
+                    System.out.println(rmiName + " prepare RemoteException: " + e.getMessage());
+                    abort(xid);
+                    throw new TransactionAbortedException(xid, e.getMessage());
+                } catch (TransactionAbortedException e) {
+                    System.out.println(rmiName + " prepare TransactionAbortedException: " + e.getMessage());
+                    abort(xid);
+                    throw new TransactionAbortedException(xid, e.getMessage());
+                } catch (InvalidTransactionException e) {
+                    System.out.println(rmiName + " prepare InvalidTransactionException: " + e.getMessage());
+                    abort(xid);
+                    throw new InvalidTransactionException(xid, e.getMessage());
+                } catch (Exception e) {
+                    System.out.println(rmiName + " prepare exception: " + e.getMessage());
+                    abort(xid);
+                    throw new TransactionAbortedException(xid, e.getMessage());
                 }
-            } catch (RemoteException e) {
-                System.out.println(rmiName + " prepare RemoteException: " + e.getMessage());
-                abort(xid);
-                throw new TransactionAbortedException(xid, e.getMessage());
-            } catch (TransactionAbortedException e) {
-                System.out.println(rmiName + " prepare TransactionAbortedException: " + e.getMessage());
-                abort(xid);
-                throw new TransactionAbortedException(xid, e.getMessage());
-            } catch (InvalidTransactionException e) {
-                System.out.println(rmiName + " prepare InvalidTransactionException: " + e.getMessage());
-                abort(xid);
-                throw new InvalidTransactionException(xid, e.getMessage());
-            } catch (Exception e) {
-                System.out.println(rmiName + " prepare exception: " + e.getMessage());
-                abort(xid);
-                throw new TransactionAbortedException(xid, e.getMessage());
-            }
+        }
 
         if (flagDieTMBeforeCommit)
             dieNow();
 
-        for (String rmiName : activeTransactions.get(xid))
-            try {
-                System.out.println("commit " + rmiName + " #" + xid);
-                switch (rmiName) {
-                    case ResourceManager.RMINameFlights:
-                        rmFlights.commit(xid);
-                        break;
-                    case ResourceManager.RMINameRooms:
-                        rmRooms.commit(xid);
-                        break;
-                    case ResourceManager.RMINameCars:
-                        rmCars.commit(xid);
-                        break;
-                    case ResourceManager.RMINameCustomers:
-                        rmCustomers.commit(xid);
-                        break;
+        // snapshots older than the timestamp do not see the commit, and
+        // no snapshot is taken at or after it until it has been applied
+        long timestamp = -1;
+        long horizon;
+        synchronized (committing) {
+            if (!readOnly) {
+                timestamp = ++clock;
+                committing.add(timestamp);
+            }
+            horizon = horizon();
+        }
+        HashSet<String> failed = new HashSet<String>();
+        try {
+            for (String rmiName : activeTransactions.get(xid))
+                try {
+                    System.out.println("commit " + rmiName + " #" + xid);
+                    switch (rmiName) {
+                        case ResourceManager.RMINameFlights:
+                            rmFlights.commit(xid, timestamp, horizon);
+                            break;
+                        case ResourceManager.RMINameRooms:
+                            rmRooms.commit(xid, timestamp, horizon);
+                            break;
+                        case ResourceManager.RMINameCars:
+                            rmCars.commit(xid, timestamp, horizon);
+                            break;
+                        case ResourceManager.RMINameCustomers:
+                            rmCustomers.commit(xid, timestamp, horizon);
+                            break;
+                    }
+                } catch (TransactionAbortedException e) {
+                    abort(xid);
+                    throw new TransactionAbortedException(xid, e.getMessage());
+                } catch (InvalidTransactionException e) {
+                    abort(xid);
+                    throw new InvalidTransactionException(xid, e.getMessage());
+                } catch (Exception e) {
+                    System.out.println(rmiName + " commit exception: " + e.getMessage());
+                    failed.add(rmiName);
                 }
-            } catch (TransactionAbortedException e) {
-                abort(xid);
-                throw new TransactionAbortedException(xid, e.getMessage());
-            } catch (InvalidTransactionException e) {
-                abort(xid);
-                throw new InvalidTransactionException(xid, e.getMessage());
-            } catch (Exception e) {
-                System.out.println(rmiName + " commit exception: " + e.getMessage());
+        } finally {
+            synchronized (committing) {
+                if (failed.isEmpty())
+                    committing.remove(timestamp);
+                else
+                    unacknowledged.put(timestamp, failed);
+                snapshots.remove(xid);
             }
+        }
 
         if (flagDieTMAfterCommit)
             dieNow();
@@ -213,15 +287,55 @@ public class TransactionManagerImpl extends java.rmi.server.UnicastRemoteObject
             }
         }
         activeTransactions.remove(xid);
+        synchronized (committing) {
+            snapshots.remove(xid);
+        }
         return;
     }
 
-    public void enlist(int xid, String component)
+    public long enlist(int xid, String component)
             throws RemoteException, InvalidTransactionException, TransactionAbortedException {
         checkXid(xid);
         HashSet<String> rmiNames = activeTransactions.get(xid);
         rmiNames.add(component);
         activeTransactions.put(xid, rmiNames);
+        synchronized (committing) {
+            acknowledge(component);
+            Long snapshot = snapshots.get(xid);
+            if (snapshot == null)
+                return -1;
+            if (redone.containsKey(component) && snapshot < redone.get(component))
+                throw new TransactionAbortedException(xid, component + " has restarted since the snapshot");
+            return snapshot;
+        }
+    }
+
+    public void recovered(String rmiName) throws RemoteException {
+        synchronized (committing) {
+            // any commit stamped so far may have reached its log
+            if (!redone.containsKey(rmiName) || redone.get(rmiName) < clock)
+                redone.put(rmiName, clock);
+        }
+    }
+
+    // Releases the commits whose failed RM is back; an RM recovers
+    // before it is bound, so by the time it enlists it has redone every
+    // commit whose record reached its log.  Called with committing held.
+    private void acknowledge(String rmiName) {
+        if (unacknowledged.isEmpty())
+            return;
+        Iterator<Map.Entry<Long, HashSet<String>>> entries = unacknowledged.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, HashSet<String>> entry = entries.next();
+            if (!entry.getValue().remove(rmiName))
+                continue;
+            if (!redone.containsKey(rmiName) || redone.get(rmiName) < entry.getKey())
+                redone.put(rmiName, entry.getKey());
+            if (entry.getValue().isEmpty()) {
+                committing.remove(entry.getKey());
+                entries.remove();
+            }
+        }
     }
 
     public void checkXid(int xid) throws RemoteException, InvalidTransactionException, TransactionAbortedException {
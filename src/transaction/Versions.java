@@ -0,0 +1,97 @@
+package transaction;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/*
+    The committed versions of the rows of an RM, tagged with the commit
+    timestamps the TM hands out, for read-only transactions that read a
+    snapshot instead of taking locks.  The committed table holds the
+    newest version of every row; a row only has versions here while a
+    snapshot older than its last commit may still read it.  Each commit
+    pushes the new version, on top of the one it replaced, and drops
+    the versions no snapshot at or after the horizon the TM sends along
+    can see.  The first version of a row is stamped 0, as every
+    snapshot is at least as new as it.
+
+    Rows are never changed in place once committed, a commit putting a
+    copy in the committed table, so a version keeps the row object
+    itself.  Guarded by the RM, together with the committed tables.
+*/
+
+class Versions {
+
+    private static class Version {
+        long timestamp;
+        Object row; // null if the row did not exist
+        Version older;
+
+        Version(long timestamp, Object row, Version older) {
+            this.timestamp = timestamp;
+            this.row = row;
+            this.older = older;
+        }
+    }
+
+    private static class Installed {
+        String item;
+        long timestamp;
+
+        Installed(String item, long timestamp) {
+            this.item = item;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // item -> its versions, newest first
+    private HashMap<String, Version> chains = new HashMap<String, Version>();
+    // the versions in the order they were installed, to prune them
+    private ArrayDeque<Installed> installed = new ArrayDeque<Installed>();
+
+    // Records that the commit at timestamp changed item from before to
+    // after, before the committed table is changed; no snapshot will be
+    // older than horizon.
+    void install(String item, Object before, Object after, long timestamp, long horizon) {
+        Version chain = chains.get(item);
+        if (chain != null && chain.timestamp == timestamp) {
+            // changed more than once by the same transaction
+            chain.row = after;
+            return;
+        }
+        if (chain == null)
+            chain = new Version(0, before, null);
+        chains.put(item, new Version(timestamp, after, chain));
+        installed.add(new Installed(item, timestamp));
+        prune(horizon);
+    }
+
+    // the row item had at snapshot, or committed, its row in the
+    // committed table, if it has not changed since
+    Object read(String item, long snapshot, Object committed) {
+        Version version = chains.get(item);
+        if (version == null)
+            return committed;
+        while (version.timestamp > snapshot)
+            version = version.older;
+        return version.row;
+    }
+
+    // keeps the newest version a snapshot at horizon sees and those
+    // after it; a row whose newest version is visible to every
+    // snapshot is left to the committed table
+    private void prune(long horizon) {
+        while (!installed.isEmpty() && installed.peek().timestamp <= horizon) {
+            String item = installed.poll().item;
+            Version version = chains.get(item);
+            if (version == null)
+                continue;
+            if (version.timestamp <= horizon) {
+                chains.remove(item);
+                continue;
+            }
+            while (version.older != null && version.timestamp > horizon)
+                version = version.older;
+            version.older = null;
+        }
+    }
+}
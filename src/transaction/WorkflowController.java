@@ -41,6 +41,19 @@ public interface WorkflowController extends Remote {
      */
     public int start()
 	throws RemoteException;
+    /**
+     * Start a new read-only transaction, and return its transaction id.
+     * It reads a consistent snapshot of the committed data, as of its
+     * start, without taking locks, so it never waits for updates and
+     * updates never wait for it.  Reservations and other updates in it
+     * fail with InvalidTransactionException.
+     *
+     * @return A unique transaction ID > 0.  Return <=0 if server is not accepting new transactions.
+     *
+     * @throws RemoteException on communications failure.
+     */
+    public int startReadOnly()
+	throws RemoteException;
     /**
      * Commit transaction.
      *
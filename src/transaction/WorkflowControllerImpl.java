@@ -63,6 +63,11 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
         return xid;
     }
 
+    public int startReadOnly() throws RemoteException {
+        System.out.println("WC start read-only");
+        return tm.startReadOnly();
+    }
+
     public boolean commit(int xid) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         System.out.println("Committing");
         return tm.commit(xid);
@@ -318,7 +323,7 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public boolean reserveFlight(int xid, String custName, String flightNum)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         try {
-            if (queryFlight(xid, flightNum) > 0) {
+            if (rmFlights.queryFlightForUpdate(xid, flightNum) > 0) {
                 return rmFlights.reserveFlight(xid, custName, flightNum)
                         && rmCustomers.reserveCustomer(xid, custName, ReservationsTable.resvTypeFlight, flightNum);
             } else
@@ -337,7 +342,7 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public boolean reserveCar(int xid, String custName, String location)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         try {
-            if (queryCars(xid, location) > 0) {
+            if (rmCars.queryCarsForUpdate(xid, location) > 0) {
                 return rmCars.reserveCar(xid, custName, location)
                         && rmCustomers.reserveCustomer(xid, custName, ReservationsTable.resvTypeCar, location);
             } else
@@ -356,7 +361,7 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public boolean reserveRoom(int xid, String custName, String location)
             throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         try {
-            if (queryRooms(xid, location) > 0) {
+            if (rmRooms.queryRoomsForUpdate(xid, location) > 0) {
                 return rmRooms.reserveRoom(xid, custName, location)
                         && rmCustomers.reserveCustomer(xid, custName, ReservationsTable.resvTypeHotelRoom, location);
             } else
@@ -375,19 +380,20 @@ public class WorkflowControllerImpl extends java.rmi.server.UnicastRemoteObject
     public boolean reserveItinerary(int xid, String custName, List flightNumList, String location, boolean needCar,
             boolean needRoom) throws RemoteException, TransactionAbortedException, InvalidTransactionException {
         try {
-            if (needCar && queryCars(xid, location) <= 0)
+            // lock for update what is about to be reserved, so that the
+            // reservations below never have to convert a READ lock
+            if (needCar && rmCars.queryCarsForUpdate(xid, location) <= 0)
                 return false;
-            if (needRoom && queryRooms(xid, location) <= 0)
+            if (needRoom && rmRooms.queryRoomsForUpdate(xid, location) <= 0)
                 return false;
-            for (Object object : flightNumList) {
-                String flightNum = (String) object;
-                if (queryFlight(xid, flightNum) <= 0)
-                    return false;
-            }
 
-            for (Object object : flightNumList) {
-                String flightNum = (String) object;
-                if (!reserveFlight(xid, custName, flightNum))
+            // all the legs in one call each to the flights and customers
+            // RMs; the flights are locked in canonical order, so that
+            // itineraries sharing flights cannot deadlock on them
+            if (!flightNumList.isEmpty()) {
+                if (!rmFlights.reserveFlights(xid, custName, flightNumList))
+                    return false;
+                if (!rmCustomers.reserveCustomer(xid, custName, ReservationsTable.resvTypeFlight, flightNumList))
                     return false;
             }
             if (needCar)
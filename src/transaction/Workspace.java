@@ -0,0 +1,32 @@
+package transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import transaction.tables.*;
+
+/*
+    The private copy of the rows a transaction works on when its RM runs
+    optimistic concurrency control.  A row is copied in from the
+    committed tables the first time the transaction touches it, along
+    with the number of the commit that wrote it; the transaction reads
+    and changes its copies without taking locks.  At prepare the RM
+    checks that none of the rows has been committed since, and only
+    then applies the changed rows to the active tables.
+*/
+
+class Workspace {
+
+    FlightsTable flights = new FlightsTable();
+    HotelsTable hotels = new HotelsTable();
+    CarsTable cars = new CarsTable();
+    ReservationsTable reservations = new ReservationsTable();
+
+    // the number of commits the RM had made when the workspace was
+    // created; the RM keeps the stamps of the rows committed since
+    long start;
+    // item -> the number of the commit of the row copied in
+    HashMap<String, Long> reads = new HashMap<String, Long>();
+    // the rows changed, applied to the active tables at prepare
+    ArrayList<TableModified> writes = new ArrayList<TableModified>();
+}
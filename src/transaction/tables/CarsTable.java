@@ -105,4 +105,12 @@ public class CarsTable implements Serializable {
         carsTable.remove(location);
     }
 
+    /**
+     * A copy of the table sharing its rows.
+     */
+    public CarsTable copy() {
+        CarsTable copy = new CarsTable();
+        copy.carsTable.putAll(carsTable);
+        return copy;
+    }
 }
@@ -102,4 +102,12 @@ public class FlightsTable implements Serializable {
         flightsTable.put(flightNum, flightsRow);
     }
 
+    /**
+     * A copy of the table sharing its rows.
+     */
+    public FlightsTable copy() {
+        FlightsTable copy = new FlightsTable();
+        copy.flightsTable.putAll(flightsTable);
+        return copy;
+    }
 }
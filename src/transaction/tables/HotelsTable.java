@@ -103,4 +103,13 @@ public class HotelsTable implements Serializable {
     public void remove(String location) {
         hotelsTable.remove(location);
     }
+
+    /**
+     * A copy of the table sharing its rows.
+     */
+    public HotelsTable copy() {
+        HotelsTable copy = new HotelsTable();
+        copy.hotelsTable.putAll(hotelsTable);
+        return copy;
+    }
 }
@@ -83,4 +83,13 @@ public class ReservationsTable implements Serializable {
     public void put(String custName, ArrayList<ResvPair> resvPairs) {
         reservationsTable.put(custName, resvPairs);
     }
+
+    /**
+     * A copy of the table sharing its rows.
+     */
+    public ReservationsTable copy() {
+        ReservationsTable copy = new ReservationsTable();
+        copy.reservationsTable.putAll(reservationsTable);
+        return copy;
+    }
 }